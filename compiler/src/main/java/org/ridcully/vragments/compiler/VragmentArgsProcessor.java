@@ -0,0 +1,720 @@
+package org.ridcully.vragments.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates an {@code ArgsCodec} implementation named {@code <ClassName>_Codec} for every class
+ * annotated with {@code org.ridcully.vragments.VragmentArgs}.
+ *
+ * The generated code uses the typed put/get methods of Bundle and the typed write/read methods of
+ * Parcel for every field, so no instanceof checks, boxing, reflection or java serialization are
+ * involved at runtime.
+ */
+
+public class VragmentArgsProcessor extends AbstractProcessor {
+
+    static final String VRAGMENT_ARGS = "org.ridcully.vragments.VragmentArgs";
+    static final String CODEC_SUFFIX = "_Codec";
+
+    private static final String STRING = "java.lang.String";
+    private static final String CHAR_SEQUENCE = "java.lang.CharSequence";
+    private static final String ARRAY_LIST = "java.util.ArrayList";
+    private static final String INTEGER = "java.lang.Integer";
+    private static final String BUNDLE = "android.os.Bundle";
+    private static final String PARCELABLE = "android.os.Parcelable";
+
+    /** Kinds of fields the generated codecs know how to write and read. */
+    private enum Kind {
+        BOOLEAN, BYTE, CHAR, SHORT, INT, LONG, FLOAT, DOUBLE,
+        BOOLEAN_ARRAY, BYTE_ARRAY, CHAR_ARRAY, SHORT_ARRAY, INT_ARRAY, LONG_ARRAY, FLOAT_ARRAY, DOUBLE_ARRAY,
+        STRING, STRING_ARRAY, CHAR_SEQUENCE, CHAR_SEQUENCE_ARRAY, ENUM, BUNDLE,
+        PARCELABLE, PARCELABLE_ARRAY, STRING_LIST, CHAR_SEQUENCE_LIST, INTEGER_LIST, PARCELABLE_LIST,
+        NESTED_ARGS
+    }
+
+    /** A single field of an args class together with what is needed to generate code for it. */
+    private static class Field {
+        final String name;
+        final Kind kind;
+        /** Declared type of the field, or element type for arrays and lists of parcelables. */
+        final String type;
+        /** true, if {@link #type} declares a static CREATOR, so typed parcel methods can be used. */
+        final boolean hasCreator;
+
+        Field(String name, Kind kind, String type, boolean hasCreator) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.hasCreator = hasCreator;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(VRAGMENT_ARGS);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@VragmentArgs can only be applied to classes");
+                    continue;
+                }
+                TypeElement type = (TypeElement) element;
+                if (!checkType(type)) continue;
+                List<Field> fields = collectFields(type);
+                if (fields == null) continue;
+                writeCodec(type, fields);
+            }
+        }
+        return true;
+    }
+
+
+    // ---------------------------------------------------------------------------- Analysis
+
+
+    private boolean checkType(TypeElement type) {
+        Set<Modifier> modifiers = type.getModifiers();
+        if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.ABSTRACT)) {
+            error(type, "@VragmentArgs class must not be private or abstract");
+            return false;
+        }
+        if (type.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            error(type, "@VragmentArgs class must be static when nested");
+            return false;
+        }
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        error(type, "@VragmentArgs class needs a non-private no-arg constructor");
+        return false;
+    }
+
+    /**
+     * Collects all fields of given type (and its superclasses) that take part in writing and
+     * reading.
+     *
+     * @param type
+     * @return the fields or null, if some field has an unsupported type, shadows a field of a
+     *            superclass or cannot be accessed by the codec
+     */
+    private List<Field> collectFields(TypeElement type) {
+        List<Field> fields = new ArrayList<>();
+        // fields by name, as the name is the key in the bundle
+        Map<String, VariableElement> fieldsByName = new HashMap<>();
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        boolean ok = true;
+        TypeElement current = type;
+        while (current != null && !current.getQualifiedName().contentEquals("java.lang.Object")) {
+            boolean samePackage = processingEnv.getElementUtils().getPackageOf(current).equals(packageElement);
+            for (VariableElement variable : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                Set<Modifier> modifiers = variable.getModifiers();
+                if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+                if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+                    error(variable, "@VragmentArgs fields must not be private or final");
+                    ok = false;
+                    continue;
+                }
+                if (!samePackage && !modifiers.contains(Modifier.PUBLIC)) {
+                    // the codec is generated into the package of the args class
+                    error(variable, "@VragmentArgs field " + variable.getSimpleName()
+                            + " of a superclass in another package must be public");
+                    ok = false;
+                    continue;
+                }
+                String name = variable.getSimpleName().toString();
+                VariableElement shadowing = fieldsByName.get(name);
+                if (shadowing != null) {
+                    error(shadowing, "@VragmentArgs field " + name + " shadows a field of superclass "
+                            + current.getQualifiedName() + "; both would use the same key");
+                    ok = false;
+                    continue;
+                }
+                fieldsByName.put(name, variable);
+                Field field = toField(variable);
+                if (field == null) {
+                    ok = false;
+                } else {
+                    fields.add(field);
+                }
+            }
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement()
+                    : null;
+        }
+        return ok ? fields : null;
+    }
+
+    private Field toField(VariableElement variable) {
+        String name = variable.getSimpleName().toString();
+        TypeMirror type = variable.asType();
+        switch (type.getKind()) {
+            case BOOLEAN: return new Field(name, Kind.BOOLEAN, "boolean", false);
+            case BYTE: return new Field(name, Kind.BYTE, "byte", false);
+            case CHAR: return new Field(name, Kind.CHAR, "char", false);
+            case SHORT: return new Field(name, Kind.SHORT, "short", false);
+            case INT: return new Field(name, Kind.INT, "int", false);
+            case LONG: return new Field(name, Kind.LONG, "long", false);
+            case FLOAT: return new Field(name, Kind.FLOAT, "float", false);
+            case DOUBLE: return new Field(name, Kind.DOUBLE, "double", false);
+            case ARRAY: return toArrayField(variable, name, ((ArrayType) type).getComponentType());
+            case DECLARED: return toDeclaredField(variable, name, (DeclaredType) type);
+            default:
+                error(variable, "Unsupported @VragmentArgs field type " + type);
+                return null;
+        }
+    }
+
+    private Field toArrayField(VariableElement variable, String name, TypeMirror component) {
+        switch (component.getKind()) {
+            case BOOLEAN: return new Field(name, Kind.BOOLEAN_ARRAY, "boolean", false);
+            case BYTE: return new Field(name, Kind.BYTE_ARRAY, "byte", false);
+            case CHAR: return new Field(name, Kind.CHAR_ARRAY, "char", false);
+            case SHORT: return new Field(name, Kind.SHORT_ARRAY, "short", false);
+            case INT: return new Field(name, Kind.INT_ARRAY, "int", false);
+            case LONG: return new Field(name, Kind.LONG_ARRAY, "long", false);
+            case FLOAT: return new Field(name, Kind.FLOAT_ARRAY, "float", false);
+            case DOUBLE: return new Field(name, Kind.DOUBLE_ARRAY, "double", false);
+            case DECLARED:
+                String componentName = erasure(component);
+                if (STRING.equals(componentName)) {
+                    return new Field(name, Kind.STRING_ARRAY, STRING, false);
+                }
+                if (CHAR_SEQUENCE.equals(componentName)) {
+                    return new Field(name, Kind.CHAR_SEQUENCE_ARRAY, CHAR_SEQUENCE, false);
+                }
+                if (isParcelable(component)) {
+                    return new Field(name, Kind.PARCELABLE_ARRAY, componentName, hasCreator(component));
+                }
+                // fall through
+            default:
+                error(variable, "Unsupported @VragmentArgs array type " + component + "[]");
+                return null;
+        }
+    }
+
+    private Field toDeclaredField(VariableElement variable, String name, DeclaredType type) {
+        String typeName = erasure(type);
+        TypeElement element = (TypeElement) type.asElement();
+        if (STRING.equals(typeName)) return new Field(name, Kind.STRING, STRING, false);
+        if (CHAR_SEQUENCE.equals(typeName)) return new Field(name, Kind.CHAR_SEQUENCE, CHAR_SEQUENCE, false);
+        if (BUNDLE.equals(typeName)) return new Field(name, Kind.BUNDLE, BUNDLE, false);
+        if (element.getKind() == ElementKind.ENUM) return new Field(name, Kind.ENUM, typeName, false);
+        if (hasAnnotation(element, VRAGMENT_ARGS)) return new Field(name, Kind.NESTED_ARGS, typeName, false);
+        if (isParcelable(type)) return new Field(name, Kind.PARCELABLE, typeName, false);
+        if (ARRAY_LIST.equals(typeName) && type.getTypeArguments().size() == 1) {
+            TypeMirror elementType = type.getTypeArguments().get(0);
+            String elementName = erasure(elementType);
+            if (STRING.equals(elementName)) return new Field(name, Kind.STRING_LIST, STRING, false);
+            if (CHAR_SEQUENCE.equals(elementName)) return new Field(name, Kind.CHAR_SEQUENCE_LIST, CHAR_SEQUENCE, false);
+            if (INTEGER.equals(elementName)) return new Field(name, Kind.INTEGER_LIST, INTEGER, false);
+            if (elementType.getKind() == TypeKind.DECLARED && isParcelable(elementType)) {
+                return new Field(name, Kind.PARCELABLE_LIST, elementName, hasCreator(elementType));
+            }
+        }
+        if (isBoxed(typeName)) {
+            error(variable, "Boxed @VragmentArgs field " + name + " is not supported; use a primitive");
+        } else if (isSubtypeOf(type, "java.io.Serializable")) {
+            error(variable, "Serializable @VragmentArgs field " + name
+                    + " is not supported; make " + typeName + " Parcelable or @VragmentArgs");
+        } else {
+            error(variable, "Unsupported @VragmentArgs field type " + type);
+        }
+        return null;
+    }
+
+    private boolean isBoxed(String typeName) {
+        switch (typeName) {
+            case "java.lang.Boolean":
+            case "java.lang.Byte":
+            case "java.lang.Character":
+            case "java.lang.Short":
+            case "java.lang.Integer":
+            case "java.lang.Long":
+            case "java.lang.Float":
+            case "java.lang.Double":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private boolean isParcelable(TypeMirror type) {
+        return isSubtypeOf(type, PARCELABLE);
+    }
+
+    private boolean isSubtypeOf(TypeMirror type, String superType) {
+        TypeElement superElement = processingEnv.getElementUtils().getTypeElement(superType);
+        if (superElement == null) return false;
+        return processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type),
+                processingEnv.getTypeUtils().erasure(superElement.asType()));
+    }
+
+    /**
+     * Checks if given parcelable type itself declares a static CREATOR, so that the typed (and
+     * cheaper) Parcel methods can be used instead of writing class names for every element.
+     */
+    private boolean hasCreator(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        if (element.getModifiers().contains(Modifier.ABSTRACT)
+                || element.getKind() == ElementKind.INTERFACE) {
+            return false;
+        }
+        for (VariableElement field : ElementFilter.fieldsIn(element.getEnclosedElements())) {
+            if (field.getSimpleName().contentEquals("CREATOR")
+                    && field.getModifiers().contains(Modifier.STATIC)
+                    && field.getModifiers().contains(Modifier.PUBLIC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasAnnotation(Element element, String annotation) {
+        for (javax.lang.model.element.AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotation)) return true;
+        }
+        return false;
+    }
+
+    private String erasure(TypeMirror type) {
+        TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+        if (erased.getKind() == TypeKind.DECLARED) {
+            return ((TypeElement) ((DeclaredType) erased).asElement()).getQualifiedName().toString();
+        }
+        return erased.toString();
+    }
+
+
+    // ---------------------------------------------------------------------------- Generation
+
+
+    /**
+     * Name of the generated codec for given args class, e.g. {@code Outer_Inner_Codec} for a
+     * nested class {@code Outer.Inner}.
+     */
+    static String codecSimpleName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, enclosing.getSimpleName() + "_");
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(CODEC_SUFFIX).toString();
+    }
+
+    private String codecQualifiedName(String argsQualifiedName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(argsQualifiedName);
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        return packageName.isEmpty()
+                ? codecSimpleName(type)
+                : packageName + "." + codecSimpleName(type);
+    }
+
+    private void writeCodec(TypeElement type, List<Field> fields) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.getQualifiedName().toString();
+        String codecName = codecSimpleName(type);
+        String argsName = type.getQualifiedName().toString();
+        boolean needsClassLoader = false;
+        for (Field field : fields) {
+            needsClassLoader |= field.kind == Kind.PARCELABLE || field.kind == Kind.PARCELABLE_ARRAY
+                    || field.kind == Kind.PARCELABLE_LIST || field.kind == Kind.BUNDLE;
+        }
+
+        StringBuilder src = new StringBuilder();
+        if (!packageName.isEmpty()) {
+            src.append("package ").append(packageName).append(";\n\n");
+        }
+        src.append("import android.os.Bundle;\n")
+                .append("import android.os.Parcel;\n\n")
+                .append("/**\n * Generated by VragmentArgsProcessor for {@link ").append(argsName)
+                .append("}. Do not edit.\n */\n")
+                .append("public final class ").append(codecName)
+                .append(" implements org.ridcully.vragments.ArgsCodec<").append(argsName).append("> {\n\n")
+                .append("    public static final ").append(codecName).append(" INSTANCE = new ")
+                .append(codecName).append("();\n\n")
+                .append("    private ").append(codecName).append("() {\n    }\n\n");
+
+        // static convenience methods
+        src.append("    public static Bundle toBundle(").append(argsName).append(" args) {\n")
+                .append("        Bundle out = new Bundle(").append(Math.max(fields.size(), 1)).append(");\n")
+                .append("        INSTANCE.write(args, out);\n")
+                .append("        return out;\n")
+                .append("    }\n\n")
+                .append("    public static ").append(argsName).append(" fromBundle(Bundle in) {\n")
+                .append("        return INSTANCE.read(in);\n")
+                .append("    }\n\n");
+
+        // bundle
+        src.append("    @Override\n    public void write(").append(argsName).append(" args, Bundle out) {\n");
+        for (Field field : fields) writeToBundle(src, field);
+        src.append("    }\n\n");
+        src.append("    @Override\n    public ").append(argsName).append(" read(Bundle in) {\n");
+        if (needsClassLoader) {
+            src.append("        in.setClassLoader(").append(argsName).append(".class.getClassLoader());\n");
+        }
+        src.append("        ").append(argsName).append(" args = new ").append(argsName).append("();\n");
+        for (Field field : fields) readFromBundle(src, field);
+        src.append("        return args;\n    }\n\n");
+
+        // parcel
+        src.append("    @Override\n    public void writeToParcel(").append(argsName).append(" args, Parcel dest) {\n");
+        for (Field field : fields) writeToParcel(src, field);
+        src.append("    }\n\n");
+        src.append("    @Override\n    public ").append(argsName).append(" createFromParcel(Parcel source) {\n");
+        if (needsClassLoader) {
+            src.append("        ClassLoader loader = ").append(argsName).append(".class.getClassLoader();\n");
+        }
+        src.append("        ").append(argsName).append(" args = new ").append(argsName).append("();\n");
+        for (Field field : fields) readFromParcel(src, field);
+        src.append("        return args;\n    }\n}\n");
+
+        String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedCodecName, type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(src.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            error(type, "Could not write " + qualifiedCodecName + ": " + e.getMessage());
+        }
+    }
+
+    private void writeToBundle(StringBuilder src, Field f) {
+        String value = "args." + f.name;
+        String key = "\"" + f.name + "\"";
+        String line;
+        switch (f.kind) {
+            case BOOLEAN: line = "out.putBoolean(" + key + ", " + value + ")"; break;
+            case BYTE: line = "out.putByte(" + key + ", " + value + ")"; break;
+            case CHAR: line = "out.putChar(" + key + ", " + value + ")"; break;
+            case SHORT: line = "out.putShort(" + key + ", " + value + ")"; break;
+            case INT: line = "out.putInt(" + key + ", " + value + ")"; break;
+            case LONG: line = "out.putLong(" + key + ", " + value + ")"; break;
+            case FLOAT: line = "out.putFloat(" + key + ", " + value + ")"; break;
+            case DOUBLE: line = "out.putDouble(" + key + ", " + value + ")"; break;
+            case BOOLEAN_ARRAY: line = "out.putBooleanArray(" + key + ", " + value + ")"; break;
+            case BYTE_ARRAY: line = "out.putByteArray(" + key + ", " + value + ")"; break;
+            case CHAR_ARRAY: line = "out.putCharArray(" + key + ", " + value + ")"; break;
+            case SHORT_ARRAY: line = "out.putShortArray(" + key + ", " + value + ")"; break;
+            case INT_ARRAY: line = "out.putIntArray(" + key + ", " + value + ")"; break;
+            case LONG_ARRAY: line = "out.putLongArray(" + key + ", " + value + ")"; break;
+            case FLOAT_ARRAY: line = "out.putFloatArray(" + key + ", " + value + ")"; break;
+            case DOUBLE_ARRAY: line = "out.putDoubleArray(" + key + ", " + value + ")"; break;
+            case STRING: line = "out.putString(" + key + ", " + value + ")"; break;
+            case STRING_ARRAY: line = "out.putStringArray(" + key + ", " + value + ")"; break;
+            case CHAR_SEQUENCE: line = "out.putCharSequence(" + key + ", " + value + ")"; break;
+            case CHAR_SEQUENCE_ARRAY: line = "out.putCharSequenceArray(" + key + ", " + value + ")"; break;
+            case ENUM: line = "out.putString(" + key + ", " + value + " == null ? null : " + value + ".name())"; break;
+            case BUNDLE: line = "out.putBundle(" + key + ", " + value + ")"; break;
+            case PARCELABLE: line = "out.putParcelable(" + key + ", " + value + ")"; break;
+            case PARCELABLE_ARRAY: line = "out.putParcelableArray(" + key + ", " + value + ")"; break;
+            case STRING_LIST: line = "out.putStringArrayList(" + key + ", " + value + ")"; break;
+            case CHAR_SEQUENCE_LIST: line = "out.putCharSequenceArrayList(" + key + ", " + value + ")"; break;
+            case INTEGER_LIST: line = "out.putIntegerArrayList(" + key + ", " + value + ")"; break;
+            case PARCELABLE_LIST: line = "out.putParcelableArrayList(" + key + ", " + value + ")"; break;
+            case NESTED_ARGS:
+                line = "out.putBundle(" + key + ", " + value + " == null ? null : "
+                        + codecQualifiedName(f.type) + ".toBundle(" + value + "))";
+                break;
+            default: throw new IllegalStateException("Unhandled kind " + f.kind);
+        }
+        src.append("        ").append(line).append(";\n");
+    }
+
+    private void readFromBundle(StringBuilder src, Field f) {
+        String target = "args." + f.name;
+        String key = "\"" + f.name + "\"";
+        String expr;
+        switch (f.kind) {
+            case BOOLEAN: expr = "in.getBoolean(" + key + ")"; break;
+            case BYTE: expr = "in.getByte(" + key + ")"; break;
+            case CHAR: expr = "in.getChar(" + key + ")"; break;
+            case SHORT: expr = "in.getShort(" + key + ")"; break;
+            case INT: expr = "in.getInt(" + key + ")"; break;
+            case LONG: expr = "in.getLong(" + key + ")"; break;
+            case FLOAT: expr = "in.getFloat(" + key + ")"; break;
+            case DOUBLE: expr = "in.getDouble(" + key + ")"; break;
+            case BOOLEAN_ARRAY: expr = "in.getBooleanArray(" + key + ")"; break;
+            case BYTE_ARRAY: expr = "in.getByteArray(" + key + ")"; break;
+            case CHAR_ARRAY: expr = "in.getCharArray(" + key + ")"; break;
+            case SHORT_ARRAY: expr = "in.getShortArray(" + key + ")"; break;
+            case INT_ARRAY: expr = "in.getIntArray(" + key + ")"; break;
+            case LONG_ARRAY: expr = "in.getLongArray(" + key + ")"; break;
+            case FLOAT_ARRAY: expr = "in.getFloatArray(" + key + ")"; break;
+            case DOUBLE_ARRAY: expr = "in.getDoubleArray(" + key + ")"; break;
+            case STRING: expr = "in.getString(" + key + ")"; break;
+            case STRING_ARRAY: expr = "in.getStringArray(" + key + ")"; break;
+            case CHAR_SEQUENCE: expr = "in.getCharSequence(" + key + ")"; break;
+            case CHAR_SEQUENCE_ARRAY: expr = "in.getCharSequenceArray(" + key + ")"; break;
+            case BUNDLE: expr = "in.getBundle(" + key + ")"; break;
+            case PARCELABLE: expr = "in.<" + f.type + ">getParcelable(" + key + ")"; break;
+            case STRING_LIST: expr = "in.getStringArrayList(" + key + ")"; break;
+            case CHAR_SEQUENCE_LIST: expr = "in.getCharSequenceArrayList(" + key + ")"; break;
+            case INTEGER_LIST: expr = "in.getIntegerArrayList(" + key + ")"; break;
+            case PARCELABLE_LIST: expr = "in.<" + f.type + ">getParcelableArrayList(" + key + ")"; break;
+            case ENUM: {
+                String local = f.name + "Name";
+                src.append("        String ").append(local).append(" = in.getString(").append(key).append(");\n");
+                expr = local + " == null ? null : " + f.type + ".valueOf(" + local + ")";
+                break;
+            }
+            case PARCELABLE_ARRAY: {
+                String local = f.name + "Array";
+                src.append("        android.os.Parcelable[] ").append(local)
+                        .append(" = in.getParcelableArray(").append(key).append(");\n");
+                expr = copyParcelableArray(local, f.type);
+                break;
+            }
+            case NESTED_ARGS: {
+                String local = f.name + "Bundle";
+                src.append("        Bundle ").append(local).append(" = in.getBundle(").append(key).append(");\n");
+                expr = local + " == null ? null : " + codecQualifiedName(f.type) + ".INSTANCE.read(" + local + ")";
+                break;
+            }
+            default: throw new IllegalStateException("Unhandled kind " + f.kind);
+        }
+        src.append("        ").append(target).append(" = ").append(expr).append(";\n");
+    }
+
+    private void writeToParcel(StringBuilder src, Field f) {
+        String value = "args." + f.name;
+        switch (f.kind) {
+            case BOOLEAN: line(src, "dest.writeInt(" + value + " ? 1 : 0)"); break;
+            case BYTE: line(src, "dest.writeByte(" + value + ")"); break;
+            case CHAR:
+            case SHORT:
+            case INT: line(src, "dest.writeInt(" + value + ")"); break;
+            case LONG: line(src, "dest.writeLong(" + value + ")"); break;
+            case FLOAT: line(src, "dest.writeFloat(" + value + ")"); break;
+            case DOUBLE: line(src, "dest.writeDouble(" + value + ")"); break;
+            case BOOLEAN_ARRAY: line(src, "dest.writeBooleanArray(" + value + ")"); break;
+            case BYTE_ARRAY: line(src, "dest.writeByteArray(" + value + ")"); break;
+            case CHAR_ARRAY: line(src, "dest.writeCharArray(" + value + ")"); break;
+            case INT_ARRAY: line(src, "dest.writeIntArray(" + value + ")"); break;
+            case LONG_ARRAY: line(src, "dest.writeLongArray(" + value + ")"); break;
+            case FLOAT_ARRAY: line(src, "dest.writeFloatArray(" + value + ")"); break;
+            case DOUBLE_ARRAY: line(src, "dest.writeDoubleArray(" + value + ")"); break;
+            case SHORT_ARRAY:
+            case INTEGER_LIST: {
+                // Parcel has no methods for these, so write length followed by plain ints
+                String size = f.kind == Kind.SHORT_ARRAY ? value + ".length" : value + ".size()";
+                String element = f.kind == Kind.SHORT_ARRAY ? value + "[i]" : value + ".get(i)";
+                src.append("        if (").append(value).append(" == null) {\n")
+                        .append("            dest.writeInt(-1);\n")
+                        .append("        } else {\n")
+                        .append("            int size = ").append(size).append(";\n")
+                        .append("            dest.writeInt(size);\n")
+                        .append("            for (int i = 0; i < size; i++) dest.writeInt(").append(element).append(");\n")
+                        .append("        }\n");
+                break;
+            }
+            case STRING: line(src, "dest.writeString(" + value + ")"); break;
+            case STRING_ARRAY: line(src, "dest.writeStringArray(" + value + ")"); break;
+            case STRING_LIST: line(src, "dest.writeStringList(" + value + ")"); break;
+            case CHAR_SEQUENCE: line(src, "android.text.TextUtils.writeToParcel(" + value + ", dest, 0)"); break;
+            case CHAR_SEQUENCE_ARRAY:
+            case CHAR_SEQUENCE_LIST: {
+                String size = f.kind == Kind.CHAR_SEQUENCE_ARRAY ? value + ".length" : value + ".size()";
+                String element = f.kind == Kind.CHAR_SEQUENCE_ARRAY ? value + "[i]" : value + ".get(i)";
+                src.append("        if (").append(value).append(" == null) {\n")
+                        .append("            dest.writeInt(-1);\n")
+                        .append("        } else {\n")
+                        .append("            int size = ").append(size).append(";\n")
+                        .append("            dest.writeInt(size);\n")
+                        .append("            for (int i = 0; i < size; i++) android.text.TextUtils.writeToParcel(")
+                        .append(element).append(", dest, 0);\n")
+                        .append("        }\n");
+                break;
+            }
+            case ENUM: line(src, "dest.writeString(" + value + " == null ? null : " + value + ".name())"); break;
+            case BUNDLE: line(src, "dest.writeBundle(" + value + ")"); break;
+            case PARCELABLE: line(src, "dest.writeParcelable(" + value + ", 0)"); break;
+            case PARCELABLE_ARRAY:
+                line(src, f.hasCreator
+                        ? "dest.writeTypedArray(" + value + ", 0)"
+                        : "dest.writeParcelableArray(" + value + ", 0)");
+                break;
+            case PARCELABLE_LIST:
+                line(src, f.hasCreator
+                        ? "dest.writeTypedList(" + value + ")"
+                        : "dest.writeList(" + value + ")");
+                break;
+            case NESTED_ARGS:
+                src.append("        if (").append(value).append(" == null) {\n")
+                        .append("            dest.writeInt(0);\n")
+                        .append("        } else {\n")
+                        .append("            dest.writeInt(1);\n")
+                        .append("            ").append(codecQualifiedName(f.type))
+                        .append(".INSTANCE.writeToParcel(").append(value).append(", dest);\n")
+                        .append("        }\n");
+                break;
+            default: throw new IllegalStateException("Unhandled kind " + f.kind);
+        }
+    }
+
+    private void readFromParcel(StringBuilder src, Field f) {
+        String target = "args." + f.name;
+        switch (f.kind) {
+            case BOOLEAN: assign(src, target, "source.readInt() != 0"); break;
+            case BYTE: assign(src, target, "source.readByte()"); break;
+            case CHAR: assign(src, target, "(char) source.readInt()"); break;
+            case SHORT: assign(src, target, "(short) source.readInt()"); break;
+            case INT: assign(src, target, "source.readInt()"); break;
+            case LONG: assign(src, target, "source.readLong()"); break;
+            case FLOAT: assign(src, target, "source.readFloat()"); break;
+            case DOUBLE: assign(src, target, "source.readDouble()"); break;
+            case BOOLEAN_ARRAY: assign(src, target, "source.createBooleanArray()"); break;
+            case BYTE_ARRAY: assign(src, target, "source.createByteArray()"); break;
+            case CHAR_ARRAY: assign(src, target, "source.createCharArray()"); break;
+            case INT_ARRAY: assign(src, target, "source.createIntArray()"); break;
+            case LONG_ARRAY: assign(src, target, "source.createLongArray()"); break;
+            case FLOAT_ARRAY: assign(src, target, "source.createFloatArray()"); break;
+            case DOUBLE_ARRAY: assign(src, target, "source.createDoubleArray()"); break;
+            case SHORT_ARRAY:
+                src.append("        {\n")
+                        .append("            int size = source.readInt();\n")
+                        .append("            if (size >= 0) {\n")
+                        .append("                ").append(target).append(" = new short[size];\n")
+                        .append("                for (int i = 0; i < size; i++) ").append(target)
+                        .append("[i] = (short) source.readInt();\n")
+                        .append("            }\n")
+                        .append("        }\n");
+                break;
+            case INTEGER_LIST:
+                src.append("        {\n")
+                        .append("            int size = source.readInt();\n")
+                        .append("            if (size >= 0) {\n")
+                        .append("                ").append(target).append(" = new java.util.ArrayList<>(size);\n")
+                        .append("                for (int i = 0; i < size; i++) ").append(target)
+                        .append(".add(source.readInt());\n")
+                        .append("            }\n")
+                        .append("        }\n");
+                break;
+            case STRING: assign(src, target, "source.readString()"); break;
+            case STRING_ARRAY: assign(src, target, "source.createStringArray()"); break;
+            case STRING_LIST: assign(src, target, "source.createStringArrayList()"); break;
+            case CHAR_SEQUENCE:
+                assign(src, target, "android.text.TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(source)");
+                break;
+            case CHAR_SEQUENCE_ARRAY:
+            case CHAR_SEQUENCE_LIST: {
+                boolean array = f.kind == Kind.CHAR_SEQUENCE_ARRAY;
+                src.append("        {\n")
+                        .append("            int size = source.readInt();\n")
+                        .append("            if (size >= 0) {\n")
+                        .append("                ").append(target).append(array
+                                ? " = new CharSequence[size];\n"
+                                : " = new java.util.ArrayList<>(size);\n")
+                        .append("                for (int i = 0; i < size; i++) ").append(target)
+                        .append(array ? "[i] = " : ".add(")
+                        .append("android.text.TextUtils.CHAR_SEQUENCE_CREATOR.createFromParcel(source)")
+                        .append(array ? ";\n" : ");\n")
+                        .append("            }\n")
+                        .append("        }\n");
+                break;
+            }
+            case ENUM: {
+                String local = f.name + "Name";
+                src.append("        String ").append(local).append(" = source.readString();\n");
+                assign(src, target, local + " == null ? null : " + f.type + ".valueOf(" + local + ")");
+                break;
+            }
+            case BUNDLE: assign(src, target, "source.readBundle(loader)"); break;
+            case PARCELABLE: assign(src, target, "source.<" + f.type + ">readParcelable(loader)"); break;
+            case PARCELABLE_ARRAY:
+                if (f.hasCreator) {
+                    assign(src, target, "source.createTypedArray(" + f.type + ".CREATOR)");
+                } else {
+                    String local = f.name + "Array";
+                    src.append("        android.os.Parcelable[] ").append(local)
+                            .append(" = source.readParcelableArray(loader);\n");
+                    assign(src, target, copyParcelableArray(local, f.type));
+                }
+                break;
+            case PARCELABLE_LIST:
+                if (f.hasCreator) {
+                    assign(src, target, "source.createTypedArrayList(" + f.type + ".CREATOR)");
+                } else {
+                    src.append("        @SuppressWarnings(\"unchecked\")\n")
+                            .append("        java.util.ArrayList<").append(f.type).append("> ")
+                            .append(f.name).append("List = source.readArrayList(loader);\n");
+                    assign(src, target, f.name + "List");
+                }
+                break;
+            case NESTED_ARGS:
+                assign(src, target, "source.readInt() == 0 ? null : "
+                        + codecQualifiedName(f.type) + ".INSTANCE.createFromParcel(source)");
+                break;
+            default: throw new IllegalStateException("Unhandled kind " + f.kind);
+        }
+    }
+
+    /**
+     * Bundle and Parcel return Parcelable[] for parcelable arrays, which cannot be cast to the
+     * declared array type, so the elements have to be copied.
+     */
+    private String copyParcelableArray(String local, String componentType) {
+        return local + " == null ? null : java.util.Arrays.copyOf(" + local + ", " + local
+                + ".length, " + componentType + "[].class)";
+    }
+
+    private void line(StringBuilder src, String statement) {
+        src.append("        ").append(statement).append(";\n");
+    }
+
+    private void assign(StringBuilder src, String target, String expr) {
+        src.append("        ").append(target).append(" = ").append(expr).append(";\n");
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,178 @@
+package org.ridcully.vragments.compiler;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+/**
+ * Compiles args classes with the processor, against minimal stand-ins for the Android and
+ * library classes the generated codecs use.
+ */
+public class VragmentArgsProcessorTest {
+
+    @Test
+    public void generatesCompilingCodec() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.Mode",
+                        "package test;",
+                        "public enum Mode { LIST, GRID }"),
+                JavaFileObjects.forSourceLines("test.PageArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class PageArgs {",
+                        "    int page;",
+                        "}"),
+                JavaFileObjects.forSourceLines("test.DetailArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class DetailArgs {",
+                        "    long id;",
+                        "    boolean editable;",
+                        "    int[] selection;",
+                        "    String title;",
+                        "    Mode mode;",
+                        "    PageArgs page;",
+                        "    transient String ignored;",
+                        "    static String alsoIgnored;",
+                        "}"));
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).generatedSourceFile("test.PageArgs_Codec");
+        assertThat(compilation).generatedSourceFile("test.DetailArgs_Codec")
+                .contentsAsUtf8String().contains("out.putLong(\"id\", args.id);");
+        assertThat(compilation).generatedSourceFile("test.DetailArgs_Codec")
+                .contentsAsUtf8String().contains("test.PageArgs_Codec.toBundle(args.page)");
+        assertThat(compilation).generatedSourceFile("test.DetailArgs_Codec")
+                .contentsAsUtf8String().doesNotContain("ignored");
+    }
+
+    @Test
+    public void namesCodecOfNestedClassAfterEnclosingClass() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.Screen",
+                        "package test;",
+                        "public class Screen {",
+                        "    @org.ridcully.vragments.VragmentArgs",
+                        "    public static class Args {",
+                        "        String query;",
+                        "    }",
+                        "}"));
+
+        assertThat(compilation).succeeded();
+        assertThat(compilation).generatedSourceFile("test.Screen_Args_Codec");
+    }
+
+    @Test
+    public void rejectsBoxedField() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.BoxedArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class BoxedArgs {",
+                        "    Integer count;",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Boxed @VragmentArgs field count");
+    }
+
+    @Test
+    public void rejectsSerializableField() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.SerializableArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class SerializableArgs {",
+                        "    java.util.Date date;",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Serializable @VragmentArgs field date");
+    }
+
+    @Test
+    public void rejectsPrivateField() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.PrivateArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class PrivateArgs {",
+                        "    private long id;",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("must not be private or final");
+    }
+
+    @Test
+    public void rejectsMissingNoArgConstructor() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.ConstructorArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class ConstructorArgs {",
+                        "    long id;",
+                        "    ConstructorArgs(long id) { this.id = id; }",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("needs a non-private no-arg constructor");
+    }
+
+    @Test
+    public void rejectsShadowingField() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("test.BaseArgs",
+                        "package test;",
+                        "public class BaseArgs {",
+                        "    long id;",
+                        "}"),
+                JavaFileObjects.forSourceLines("test.ShadowingArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class ShadowingArgs extends BaseArgs {",
+                        "    long id;",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("field id shadows a field of superclass test.BaseArgs");
+    }
+
+    @Test
+    public void rejectsInaccessibleSuperclassField() throws Exception {
+        Compilation compilation = compile(
+                JavaFileObjects.forSourceLines("base.BaseArgs",
+                        "package base;",
+                        "public class BaseArgs {",
+                        "    protected long id;",
+                        "}"),
+                JavaFileObjects.forSourceLines("test.DerivedArgs",
+                        "package test;",
+                        "@org.ridcully.vragments.VragmentArgs",
+                        "public class DerivedArgs extends base.BaseArgs {",
+                        "    String name;",
+                        "}"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("superclass in another package must be public");
+    }
+
+    private static Compilation compile(JavaFileObject... sources) {
+        List<JavaFileObject> files = new ArrayList<>(Arrays.asList(sources));
+        files.add(JavaFileObjects.forResource("stubs/android/os/Bundle.java"));
+        files.add(JavaFileObjects.forResource("stubs/android/os/Parcel.java"));
+        files.add(JavaFileObjects.forResource("stubs/org/ridcully/vragments/ArgsCodec.java"));
+        files.add(JavaFileObjects.forResource("stubs/org/ridcully/vragments/VragmentArgs.java"));
+        return javac().withProcessors(new VragmentArgsProcessor()).compile(files);
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/** Minimal stand-in for the Android class, covering what codecs of the test inputs use. */
+public final class Bundle {
+    public Bundle(int capacity) { }
+    public void setClassLoader(ClassLoader loader) { }
+    public void putBoolean(String key, boolean value) { }
+    public boolean getBoolean(String key) { return false; }
+    public void putInt(String key, int value) { }
+    public int getInt(String key) { return 0; }
+    public void putLong(String key, long value) { }
+    public long getLong(String key) { return 0; }
+    public void putIntArray(String key, int[] value) { }
+    public int[] getIntArray(String key) { return null; }
+    public void putString(String key, String value) { }
+    public String getString(String key) { return null; }
+    public void putBundle(String key, Bundle value) { }
+    public Bundle getBundle(String key) { return null; }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/** Minimal stand-in for the Android class, covering what codecs of the test inputs use. */
+public final class Parcel {
+    public void writeInt(int value) { }
+    public int readInt() { return 0; }
+    public void writeLong(long value) { }
+    public long readLong() { return 0; }
+    public void writeIntArray(int[] value) { }
+    public int[] createIntArray() { return null; }
+    public void writeString(String value) { }
+    public String readString() { return null; }
+}
@@ -0,0 +1,12 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/** Copy of the library interface, as the compiler module does not depend on the library. */
+public interface ArgsCodec<T> {
+    void write(T args, Bundle out);
+    T read(Bundle in);
+    void writeToParcel(T args, Parcel dest);
+    T createFromParcel(Parcel source);
+}
@@ -0,0 +1,12 @@
+package org.ridcully.vragments;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Copy of the library annotation, as the compiler module does not depend on the library. */
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface VragmentArgs {
+}
@@ -0,0 +1,41 @@
+package org.ridcully.vragments;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LinearVragment recording its callbacks, for tests.
+ */
+@SuppressLint("ViewConstructor")
+public class RecordingLinearVragment extends LinearVragment {
+
+    final List<String> calls = new ArrayList<>();
+
+    public RecordingLinearVragment(Context context, Bundle args) {
+        super(context, args);
+    }
+
+    @Override
+    protected void onCreateContent() {
+        calls.add("onCreateContent");
+    }
+
+    @Override
+    public void onAttach() {
+        calls.add("onAttach");
+    }
+
+    @Override
+    public void onStart() {
+        calls.add("onStart");
+    }
+
+    @Override
+    public void onResume() {
+        calls.add("onResume");
+    }
+}
@@ -0,0 +1,22 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+import android.widget.FrameLayout;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Activity with a single container, for tests.
+ */
+public class TestVragmentActivity extends VragmentActivity {
+
+    static final int CONTAINER_ID = 0x7f0a0001;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        FrameLayout container = new FrameLayout(this);
+        container.setId(CONTAINER_ID);
+        setContentView(container);
+    }
+}
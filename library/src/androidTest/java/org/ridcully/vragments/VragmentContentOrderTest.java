@@ -0,0 +1,85 @@
+package org.ridcully.vragments;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.ViewGroup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that vragments becoming the top of their container get their content before they get
+ * attached, like vragments declared in layouts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VragmentContentOrderTest {
+
+    private static final List<String> SHOWN = Arrays.asList("onCreateContent", "onAttach", "onStart", "onResume");
+
+    @Rule
+    public ActivityTestRule<TestVragmentActivity> mActivityRule = new ActivityTestRule<>(TestVragmentActivity.class);
+
+    @Test
+    public void pushedVragmentGetsContentBeforeAttach() throws Exception {
+        final RecordingVragment vragment = new RecordingVragment(mActivityRule.getActivity(), null);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivityRule.getActivity().getVragmentManager()
+                        .push(TestVragmentActivity.CONTAINER_ID, vragment);
+            }
+        });
+
+        assertEquals(SHOWN, vragment.calls);
+    }
+
+    @Test
+    public void pushedLinearVragmentGetsSameLifecycle() throws Exception {
+        final RecordingLinearVragment vragment = new RecordingLinearVragment(mActivityRule.getActivity(), null);
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivityRule.getActivity().getVragmentManager()
+                        .push(TestVragmentActivity.CONTAINER_ID, vragment);
+            }
+        });
+
+        assertEquals(SHOWN, vragment.calls);
+        assertSame(vragment, mActivityRule.getActivity().getVragmentManager().peek(TestVragmentActivity.CONTAINER_ID));
+    }
+
+    @Test
+    public void setStackGivesContentToTopOnly() throws Exception {
+        final List<RecordingVragment> vragments = new ArrayList<>();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                VragmentManager manager = mActivityRule.getActivity().getVragmentManager();
+                manager.setStack(TestVragmentActivity.CONTAINER_ID, Arrays.asList(
+                        new VragmentSpec(RecordingVragment.class, null, "bottom"),
+                        new VragmentSpec(RecordingVragment.class, null, "top")));
+                ViewGroup container = (ViewGroup) mActivityRule.getActivity().findViewById(TestVragmentActivity.CONTAINER_ID);
+                vragments.add((RecordingVragment) container.getChildAt(0));
+                vragments.add((RecordingVragment) container.getChildAt(1));
+            }
+        });
+
+        assertFalse(vragments.get(0).calls.contains("onCreateContent"));
+        assertEquals(SHOWN, vragments.get(1).calls);
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+}
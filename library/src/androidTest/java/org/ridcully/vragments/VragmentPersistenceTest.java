@@ -0,0 +1,119 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import android.view.View;
+import android.view.ViewGroup;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that persisted stacks are written, read back and rehydrated once revealed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VragmentPersistenceTest {
+
+    private static final List<String> SHOWN = Arrays.asList("onCreateContent", "onAttach", "onStart", "onResume");
+
+    @Rule
+    public ActivityTestRule<TestVragmentActivity> mActivityRule = new ActivityTestRule<>(TestVragmentActivity.class);
+
+    @After
+    public void tearDown() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivityRule.getActivity().getVragmentManager().setPersistent(false);
+            }
+        });
+        awaitPersisted();
+    }
+
+    @Test
+    public void persistedStackIsRestoredAndRehydrated() throws Exception {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                VragmentManager manager = mActivityRule.getActivity().getVragmentManager();
+                manager.setPersistent(true);
+                manager.push(TestVragmentActivity.CONTAINER_ID, new RecordingVragment(mActivityRule.getActivity(), named("bottom")));
+                manager.push(TestVragmentActivity.CONTAINER_ID, new RecordingVragment(mActivityRule.getActivity(), named("top")));
+                manager.flushPersisted();
+            }
+        });
+        awaitPersisted();
+
+        final boolean[] restored = new boolean[1];
+        final List<View> children = new ArrayList<>();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                restored[0] = mActivityRule.getActivity().getVragmentManager().restorePersisted();
+                children.addAll(children());
+            }
+        });
+
+        assertTrue(restored[0]);
+        assertEquals(2, children.size());
+        assertTrue(children.get(0) instanceof DehydratedVragment);
+        assertEquals("bottom", ((Vragment) children.get(0)).getArguments().getString("name"));
+        RecordingVragment top = (RecordingVragment) children.get(1);
+        assertEquals("top", top.getArguments().getString("name"));
+        assertEquals(SHOWN, top.calls);
+
+        children.clear();
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mActivityRule.getActivity().getVragmentManager().pop(TestVragmentActivity.CONTAINER_ID);
+                children.addAll(children());
+            }
+        });
+
+        assertEquals(1, children.size());
+        assertFalse(children.get(0) instanceof DehydratedVragment);
+        RecordingVragment bottom = (RecordingVragment) children.get(0);
+        assertEquals("bottom", bottom.getArguments().getString("name"));
+        assertEquals(SHOWN, bottom.calls);
+    }
+
+    private List<View> children() {
+        ViewGroup container = (ViewGroup) mActivityRule.getActivity().findViewById(TestVragmentActivity.CONTAINER_ID);
+        List<View> children = new ArrayList<>();
+        for (int i = 0; i < container.getChildCount(); i++) children.add(container.getChildAt(i));
+        return children;
+    }
+
+    private static Bundle named(String name) {
+        Bundle args = new Bundle();
+        args.putString("name", name);
+        return args;
+    }
+
+    /** Waits until all writes and deletions of persisted files are done. */
+    private static void awaitPersisted() throws Exception {
+        VragmentManager.persistExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+        InstrumentationRegistry.getInstrumentation().waitForIdleSync();
+    }
+}
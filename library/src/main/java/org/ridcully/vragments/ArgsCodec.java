@@ -0,0 +1,52 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Writes and reads typed vragment arguments to and from Bundles and Parcels.
+ * Implementations are generated for classes annotated with {@link VragmentArgs}, but can also
+ * be written by hand.
+ *
+ * @param <T> type of the arguments
+ */
+
+public interface ArgsCodec<T> {
+
+    /**
+     * Writes all fields of given args into given bundle.
+     *
+     * @param args
+     * @param out
+     */
+    void write(@NonNull T args, @NonNull Bundle out);
+
+    /**
+     * Creates a new args instance from the values in given bundle.
+     *
+     * @param in
+     * @return
+     */
+    @NonNull
+    T read(@NonNull Bundle in);
+
+    /**
+     * Writes all fields of given args into given parcel.
+     *
+     * @param args
+     * @param dest
+     */
+    void writeToParcel(@NonNull T args, @NonNull Parcel dest);
+
+    /**
+     * Creates a new args instance from given parcel, reading in the same order as
+     * {@link #writeToParcel(Object, Parcel)} wrote.
+     *
+     * @param source
+     * @return
+     */
+    @NonNull
+    T createFromParcel(@NonNull Parcel source);
+}
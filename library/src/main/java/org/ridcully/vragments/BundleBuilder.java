@@ -38,60 +38,99 @@ public class BundleBuilder {
     }
 
     public Object get(String key) {
-        if (data.containsKey(key))
-            data.get(key);
-        return null;
+        return data.get(key);
+    }
+
+    /**
+     * Writes all fields of given typed arguments into the bundle, using given codec.
+     * Prefer this over {@link #setArg(String, Object)}, as it needs no type checks and no boxing.
+     *
+     * @param codec codec for the arguments, usually generated for a {@link VragmentArgs} class
+     * @param args
+     * @return
+     */
+    public <T> BundleBuilder setArgs(ArgsCodec<T> codec, T args) {
+        codec.write(args, data);
+        return this;
     }
 
+    /**
+     * Puts given value, choosing the matching typed setter at runtime.
+     * Boxed values and arrays of boxed values are unboxed. ArrayLists of element types not
+     * supported by Bundle, and all other Serializable values, are put as Serializable.
+     *
+     * @throws IllegalArgumentException if an array of boxed values contains null
+     * @deprecated use the typed setArg methods or {@link #setArgs(ArgsCodec, Object)} instead.
+     */
+    @Deprecated
     public BundleBuilder setArg(String key, Object value) {
-        if (value instanceof Boolean)
-            setArg(key, (Boolean) value);
-        else if (value instanceof Boolean[])
-            setArg(key, (boolean[]) value);
-        else if (value instanceof Bundle)
-            setArg(key, (Bundle) value);
+        if (value instanceof String)
+            setArg(key, (String) value);
+        else if (value instanceof Integer)
+            setArg(key, ((Integer) value).intValue());
+        else if (value instanceof Long)
+            setArg(key, ((Long) value).longValue());
+        else if (value instanceof Boolean)
+            setArg(key, ((Boolean) value).booleanValue());
+        else if (value instanceof Double)
+            setArg(key, ((Double) value).doubleValue());
+        else if (value instanceof Float)
+            setArg(key, ((Float) value).floatValue());
+        else if (value instanceof Short)
+            setArg(key, ((Short) value).shortValue());
         else if (value instanceof Byte)
-            setArg(key, (Byte) value);
-        else if (value instanceof Byte[])
-            setArg(key, (byte[]) value);
+            setArg(key, ((Byte) value).byteValue());
+        else if (value instanceof Character)
+            setArg(key, ((Character) value).charValue());
         else if (value instanceof CharSequence)
             setArg(key, (CharSequence) value);
+        else if (value instanceof Bundle)
+            setArg(key, (Bundle) value);
+        else if (value instanceof Parcelable)
+            setArg(key, (Parcelable) value);
+        else if (value instanceof String[])
+            setArg(key, (String[]) value);
         else if (value instanceof CharSequence[])
             setArg(key, (CharSequence[]) value);
-        else if (value instanceof Double)
-            setArg(key, (Double) value);
-        else if (value instanceof Double[])
+        else if (value instanceof Parcelable[])
+            setArg(key, (Parcelable[]) value);
+        else if (value instanceof ArrayList && isBundleList((ArrayList) value))
+            setArg(key, (ArrayList) value);
+        else if (value instanceof SparseArray)
+            setArg(key, (SparseArray) value);
+        else if (value instanceof boolean[])
+            setArg(key, (boolean[]) value);
+        else if (value instanceof byte[])
+            setArg(key, (byte[]) value);
+        else if (value instanceof char[])
+            setArg(key, (char[]) value);
+        else if (value instanceof double[])
             setArg(key, (double[]) value);
-        else if (value instanceof Float)
-            setArg(key, (Float) value);
-        else if (value instanceof Float[])
+        else if (value instanceof float[])
             setArg(key, (float[]) value);
-        else if (value instanceof Integer)
-            setArg(key, (Integer) value);
-        else if (value instanceof Integer[])
+        else if (value instanceof int[])
             setArg(key, (int[]) value);
-        else if (value instanceof Long)
-            setArg(key, (Long) value);
-        else if (value instanceof Long[])
+        else if (value instanceof long[])
             setArg(key, (long[]) value);
-        else if (value instanceof Parcelable)
-            setArg(key, (Parcelable) value);
-        else if (value instanceof Parcelable[])
-            setArg(key, (Parcelable[]) value);
+        else if (value instanceof short[])
+            setArg(key, (short[]) value);
+        else if (value instanceof Boolean[])
+            setArg(key, unbox((Boolean[]) value));
+        else if (value instanceof Byte[])
+            setArg(key, unbox((Byte[]) value));
+        else if (value instanceof Double[])
+            setArg(key, unbox((Double[]) value));
+        else if (value instanceof Float[])
+            setArg(key, unbox((Float[]) value));
+        else if (value instanceof Integer[])
+            setArg(key, unbox((Integer[]) value));
+        else if (value instanceof Long[])
+            setArg(key, unbox((Long[]) value));
+        else if (value instanceof Short[])
+            setArg(key, unbox((Short[]) value));
+        // must be last, as boxed primitives, arrays and ArrayLists are all Serializable, too
         else if (value instanceof Serializable)
             setArg(key, (Serializable) value);
-        else if (value instanceof Short)
-            setArg(key, (Short) value);
-        else if (value instanceof Short[])
-            setArg(key, (short[]) value);
-        else if (value instanceof SparseArray)
-            setArg(key, (SparseArray) value);
-        else if (value instanceof String)
-            setArg(key, (String) value);
-        else if (value instanceof String[])
-            setArg(key, (String[]) value);
-        else if (value instanceof ArrayList)
-            setArg(key, (ArrayList) value);
         return this;
     }
 
@@ -222,19 +261,91 @@ public class BundleBuilder {
 
     @SuppressWarnings({"rawtypes", "unchecked"})
     public BundleBuilder setArg(String key, ArrayList value) {
-        Object rawValue = value.get(0);
-        if (rawValue instanceof CharSequence)
+        // element type of an empty list does not matter, all ArrayList getters of Bundle accept it
+        Object rawValue = value == null || value.isEmpty() ? null : value.get(0);
+        if (rawValue == null)
+            data.putStringArrayList(key, value);
+        else if (rawValue instanceof String)
+            data.putStringArrayList(key, value);
+        else if (rawValue instanceof CharSequence)
             data.putCharSequenceArrayList(key, value);
         else if (rawValue instanceof Integer)
             data.putIntegerArrayList(key, value);
         else if (rawValue instanceof Parcelable)
             data.putParcelableArrayList(key, value);
-        else if (rawValue instanceof String)
-            data.putStringArrayList(key, value);
+        // other element types are not supported by Bundle and ignored, as they always were
         return this;
     }
 
     public Bundle build() {
         return this.data;
     }
+
+    /**
+     * Checks if given list can be put by {@link #setArg(String, ArrayList)}, judged by its first
+     * element like there.
+     *
+     * @param list
+     * @return
+     */
+    private static boolean isBundleList(ArrayList list) {
+        Object first = list.isEmpty() ? null : list.get(0);
+        return first == null || first instanceof CharSequence || first instanceof Integer
+                || first instanceof Parcelable;
+    }
+
+    private static void checkNoNulls(Object[] values) {
+        for (Object value : values) {
+            if (value == null) throw new IllegalArgumentException("Arrays of boxed values must not contain null");
+        }
+    }
+
+    private static boolean[] unbox(Boolean[] values) {
+        checkNoNulls(values);
+        boolean[] result = new boolean[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static byte[] unbox(Byte[] values) {
+        checkNoNulls(values);
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static double[] unbox(Double[] values) {
+        checkNoNulls(values);
+        double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static float[] unbox(Float[] values) {
+        checkNoNulls(values);
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static int[] unbox(Integer[] values) {
+        checkNoNulls(values);
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static long[] unbox(Long[] values) {
+        checkNoNulls(values);
+        long[] result = new long[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
+
+    private static short[] unbox(Short[] values) {
+        checkNoNulls(values);
+        short[] result = new short[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = values[i];
+        return result;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+package org.ridcully.vragments;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.AttributeSet;
+
+import androidx.annotation.AttrRes;
+import androidx.annotation.ColorRes;
+import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.constraintlayout.widget.ConstraintLayout;
+import androidx.lifecycle.Lifecycle;
+
+/**
+ * Vragment being a ConstraintLayout, for content laid out by constraints. Inflate a layout having
+ * <code>&lt;merge&gt;</code> as root into it, so the content is not nested in another
+ * ConstraintLayout; constraints to <code>parent</code> then refer to the vragment.
+ *
+ * Apart from the layout, it behaves exactly like a {@link Vragment}; see there for the
+ * lifecycle callbacks.
+ */
+
+public class ConstraintVragment extends ConstraintLayout implements VragmentView {
+
+    /** Lifecycle and state of this vragment, shared with the other vragment bases. */
+    private final VragmentDelegate mDelegate;
+
+    public ConstraintVragment(@NonNull Context context) {
+        this(context, null, 0, null);
+    }
+
+    public ConstraintVragment(@NonNull Context context, @Nullable AttributeSet attrs) {
+        this(context, attrs, 0, null);
+    }
+
+    public ConstraintVragment(@NonNull Context context, @Nullable AttributeSet attrs, @AttrRes int defStyleAttr) {
+        this(context, attrs, defStyleAttr, null);
+    }
+
+    public ConstraintVragment(@NonNull Context context, Bundle args) {
+        this(context, null, 0, args);
+    }
+
+    public ConstraintVragment(@NonNull Context context, @Nullable AttributeSet attrs, Bundle args) {
+        this(context, attrs, 0, args);
+    }
+
+    public ConstraintVragment(@NonNull Context context, @Nullable AttributeSet attrs, @AttrRes int defStyleAttr, Bundle args) {
+        super(context, attrs, defStyleAttr);
+        mDelegate = new VragmentDelegate(this, args) {
+            @Override
+            void onCreateContent() {
+                ConstraintVragment.this.onCreateContent();
+            }
+        };
+    }
+
+    @NonNull
+    @Override
+    public Lifecycle getLifecycle() {
+        return mDelegate.getLifecycle();
+    }
+
+    /**
+     * @see Vragment#getArguments()
+     */
+    public Bundle getArguments() {
+        return mDelegate.getArguments();
+    }
+
+    /**
+     * @see Vragment#getArguments(ArgsCodec)
+     */
+    @Nullable
+    public <T> T getArguments(@NonNull ArgsCodec<T> codec) {
+        return mDelegate.getArguments(codec);
+    }
+
+    /**
+     * @see Vragment#getChildVragmentManager()
+     */
+    public VragmentManager getChildVragmentManager() {
+        return mDelegate.getChildVragmentManager();
+    }
+
+    /**
+     * @see Vragment#getTasks()
+     */
+    public VragmentTasks getTasks() {
+        return mDelegate.getTasks();
+    }
+
+    /**
+     * @see Vragment#schedule(int, Runnable)
+     */
+    @MainThread
+    public ConstraintVragment schedule(int priority, @NonNull Runnable chunk) {
+        mDelegate.schedule(priority, chunk);
+        return this;
+    }
+
+    /**
+     * @see Vragment#getCachedData(String)
+     */
+    @Nullable
+    public <T> T getCachedData(@NonNull String key) {
+        return mDelegate.getCachedData(key);
+    }
+
+    /**
+     * @see Vragment#putCachedData(String, Object)
+     */
+    public void putCachedData(@NonNull String key, @NonNull Object data) {
+        mDelegate.putCachedData(key, data);
+    }
+
+    /**
+     * @see Vragment#setMaxLifecycle(Lifecycle.State)
+     */
+    public void setMaxLifecycle(@NonNull Lifecycle.State maxLifecycle) {
+        mDelegate.setMaxLifecycle(maxLifecycle);
+    }
+
+    @NonNull
+    public Lifecycle.State getMaxLifecycle() {
+        return mDelegate.getMaxLifecycle();
+    }
+
+    /**
+     * @see Vragment#setVisibilityTracked(boolean)
+     */
+    public void setVisibilityTracked(boolean tracked) {
+        mDelegate.setVisibilityTracked(tracked);
+    }
+
+    public boolean isVisibilityTracked() {
+        return mDelegate.isVisibilityTracked();
+    }
+
+    /**
+     * @see Vragment#onCreateContent()
+     */
+    protected void onCreateContent() {
+
+    }
+
+    public boolean hasContent() {
+        return mDelegate.hasContent();
+    }
+
+    public void onAttach() {
+
+    }
+
+    public void onStart() {
+
+    }
+
+    public void onResume() {
+
+    }
+
+    public void onPause() {
+
+    }
+
+    public void onStop() {
+
+    }
+
+    public void onDetach() {
+
+    }
+
+    public void onDestroy() {
+
+    }
+
+    /**
+     * @see Vragment#onBackPressed()
+     */
+    public boolean onBackPressed() {
+        return false;
+    }
+
+
+    // -------------------------------------------------------------------- Some convenience methods
+
+
+    public CharSequence getText(int resId) {
+        return mDelegate.getText(resId);
+    }
+
+    public String getString(int resId) {
+        return mDelegate.getString(resId);
+    }
+
+    public String getString(int resId, Object... formatArgs) {
+        return mDelegate.getString(resId, formatArgs);
+    }
+
+    public Drawable getDrawable(@DrawableRes int resId) {
+        return mDelegate.getDrawable(resId);
+    }
+
+    public int getColor(@ColorRes int resId) {
+        return mDelegate.getColor(resId);
+    }
+
+
+    // ------------------------------------------------------------------------------ Internal stuff
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mDelegate.isPlaceholder()) {
+            // placeholder without content; nothing to measure but the space given to us
+            setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                    getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec));
+            return;
+        }
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mDelegate.onAttachedToWindow();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mDelegate.onDetachedFromWindow();
+    }
+
+    @Override
+    protected Parcelable onSaveInstanceState() {
+        super.onSaveInstanceState();
+        return mDelegate.onSaveInstanceState();
+    }
+
+    @Override
+    protected void onRestoreInstanceState(Parcelable state) {
+        super.onRestoreInstanceState(state);
+        mDelegate.onRestoreInstanceState(state);
+    }
+
+    VragmentDelegate getDelegate() {
+        return mDelegate;
+    }
+}
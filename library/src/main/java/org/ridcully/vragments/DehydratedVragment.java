@@ -0,0 +1,37 @@
+package org.ridcully.vragments;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Placeholder for a vragment restored from the persisted navigation, but not shown yet. It only
+ * holds class name, arguments and saved state of children of the actual vragment, which is built
+ * by VragmentManager when the placeholder becomes the top-most vragment of its container, or is
+ * about to be revealed by a back press.
+ *
+ * @see VragmentManager#setPersistent(boolean)
+ */
+
+@SuppressLint("ViewConstructor")
+final class DehydratedVragment extends Vragment {
+
+    private final String mVragmentClassName;
+
+    DehydratedVragment(@NonNull Context context, @NonNull String vragmentClassName, Bundle arguments) {
+        super(context, arguments);
+        mVragmentClassName = vragmentClassName;
+        setSaveEnabled(false);
+    }
+
+    /**
+     * Returns class name of the actual vragment.
+     *
+     * @return
+     */
+    String getVragmentClassName() {
+        return mVragmentClassName;
+    }
+}
@@ -0,0 +1,132 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+import android.os.Looper;
+
+import androidx.lifecycle.Lifecycle;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Results passed between vragments by request key, owned by the activity's vragment manager.
+ * Results are only delivered to receivers being at least started; until then only the latest
+ * result per key is kept. Pending results are part of the saved instance state.
+ */
+
+final class ResultChannel {
+
+    private final static String RESULTS_KEY = "org.ridcully.vragments.vragmentmanager.results";
+
+    /** Listeners by request key; at most one per key. */
+    private final ArrayList<Registration> mRegistrations = new ArrayList<>();
+    /** Results not delivered yet, by request key. */
+    private final Map<String, Bundle> mPendingResults = new HashMap<>();
+
+    private static final class Registration {
+        final String key;
+        final VragmentDelegate receiver;
+        final VragmentManager.ResultListener listener;
+
+        Registration(String key, VragmentDelegate receiver, VragmentManager.ResultListener listener) {
+            this.key = key;
+            this.receiver = receiver;
+            this.listener = listener;
+        }
+    }
+
+    void setResult(String key, Bundle result) {
+        checkMainThread();
+        Registration registration = find(key);
+        if (registration != null && isStarted(registration.receiver)) {
+            mPendingResults.remove(key);
+            registration.listener.onResult(key, result);
+        } else {
+            mPendingResults.put(key, result);
+        }
+    }
+
+    void clearResult(String key) {
+        checkMainThread();
+        mPendingResults.remove(key);
+    }
+
+    void setResultListener(String key, VragmentDelegate receiver, VragmentManager.ResultListener listener) {
+        checkMainThread();
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).key.equals(key)) mRegistrations.remove(i);
+        }
+        if (listener == null) return;
+        Registration registration = new Registration(key, receiver, listener);
+        mRegistrations.add(registration);
+        deliverPending(registration);
+    }
+
+    /**
+     * Delivers pending results for all keys given vragment listens to; called when it is started.
+     *
+     * @param receiver
+     */
+    void onStarted(VragmentDelegate receiver) {
+        if (mPendingResults.isEmpty()) return;
+        // listeners may change registrations, so check bounds on every step
+        for (int i = 0; i < mRegistrations.size(); i++) {
+            Registration registration = mRegistrations.get(i);
+            if (registration.receiver == receiver) deliverPending(registration);
+        }
+    }
+
+    /**
+     * Removes all listeners of given vragment; called when it is detached, so popped vragments
+     * are not kept alive by their listeners.
+     *
+     * @param receiver
+     */
+    void removeListeners(VragmentDelegate receiver) {
+        for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+            if (mRegistrations.get(i).receiver == receiver) mRegistrations.remove(i);
+        }
+    }
+
+    void onSaveInstanceState(Bundle outState) {
+        if (mPendingResults.isEmpty()) return;
+        Bundle results = new Bundle();
+        for (Map.Entry<String, Bundle> entry : mPendingResults.entrySet()) {
+            results.putBundle(entry.getKey(), entry.getValue());
+        }
+        outState.putBundle(RESULTS_KEY, results);
+    }
+
+    void onRestoreInstanceState(Bundle savedInstanceState) {
+        Bundle results = savedInstanceState.getBundle(RESULTS_KEY);
+        if (results == null) return;
+        for (String key : results.keySet()) {
+            // results set after creation and before restore are newer
+            if (!mPendingResults.containsKey(key)) mPendingResults.put(key, results.getBundle(key));
+        }
+    }
+
+    private void deliverPending(Registration registration) {
+        if (!isStarted(registration.receiver)) return;
+        Bundle result = mPendingResults.remove(registration.key);
+        if (result != null) registration.listener.onResult(registration.key, result);
+    }
+
+    private Registration find(String key) {
+        for (int i = 0; i < mRegistrations.size(); i++) {
+            if (mRegistrations.get(i).key.equals(key)) return mRegistrations.get(i);
+        }
+        return null;
+    }
+
+    private static boolean isStarted(VragmentDelegate vragment) {
+        return vragment.getLifecycle().getCurrentState().isAtLeast(Lifecycle.State.STARTED);
+    }
+
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("Results must be set and listened to on the main thread");
+        }
+    }
+}
@@ -11,26 +11,23 @@ import android.widget.FrameLayout;
 import androidx.annotation.AttrRes;
 import androidx.annotation.ColorRes;
 import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import androidx.core.content.ContextCompat;
 import androidx.lifecycle.Lifecycle;
-import androidx.lifecycle.LifecycleOwner;
-import androidx.lifecycle.LifecycleRegistry;
 
 /**
  * Base Vragment. Extend and use with some VragmentActivity to participate in Activity's lifecycle.
+ * It is a FrameLayout; for content laid out by a LinearLayout or ConstraintLayout, extend
+ * {@link LinearVragment} or {@link ConstraintVragment} instead, to avoid nesting that layout.
  */
 
-public class Vragment extends FrameLayout implements LifecycleOwner {
-
-    private final static String MARKER_KEY = "org.ridcully.vfragment.marker";
+public class Vragment extends FrameLayout implements VragmentView {
 
     private boolean mIsAttachedToWindow = false;
-    private String mMarker;
-    private Bundle mArguments;
-    private LifecycleRegistry mLifecycle;
+    /** Lifecycle and state of this vragment, shared with the other vragment bases. */
+    private final VragmentDelegate mDelegate;
 
     public Vragment(@NonNull Context context) {
         this(context, null, 0, null);
@@ -54,23 +51,179 @@ public class Vragment extends FrameLayout implements LifecycleOwner {
 
     public Vragment(@NonNull Context context, @Nullable AttributeSet attrs, @AttrRes int defStyleAttr, Bundle args) {
         super(context, attrs, defStyleAttr);
-        mArguments = args;
-        mLifecycle = new LifecycleRegistry(this);
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+        mDelegate = new VragmentDelegate(this, args) {
+            @Override
+            void onCreateContent() {
+                Vragment.this.onCreateContent();
+            }
+        };
     }
 
     @NonNull
     @Override
     public Lifecycle getLifecycle() {
-        return mLifecycle;
+        return mDelegate.getLifecycle();
     }
 
     /**
      * Returns the arguments that were provided to the constructor, if any.
+     * If live arguments were passed via {@link VragmentManager#push(int, VragmentView, Object, ArgsCodec)},
+     * they are written into the returned bundle on every call, so it reflects their current values.
+     * The same bundle is returned on every call.
      * @return
      */
     public Bundle getArguments() {
-        return mArguments;
+        return mDelegate.getArguments();
+    }
+
+    /**
+     * Returns the typed arguments of this vragment. If live arguments were passed via
+     * {@link VragmentManager#push(int, VragmentView, Object, ArgsCodec)}, the very same instance is
+     * returned. Otherwise (e.g. after restoring) the arguments bundle is read by given codec.
+     *
+     * @param codec codec for the arguments, usually generated for a {@link VragmentArgs} class
+     * @return the typed arguments or null, if no arguments were provided
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T getArguments(@NonNull ArgsCodec<T> codec) {
+        return mDelegate.getArguments(codec);
+    }
+
+    /**
+     * Returns the VragmentManager for adding and removing vragments to and from containers within
+     * this vragment. Containers are looked up in this vragment only, and the child vragments are
+     * saved and restored together with this vragment.
+     *
+     * @return the child vragment manager
+     * @throws IllegalStateException if this vragment is not hosted by a VragmentActivity
+     */
+    public VragmentManager getChildVragmentManager() {
+        return mDelegate.getChildVragmentManager();
+    }
+
+    /**
+     * Returns the tasks of this vragment, for running background work bound to its lifecycle.
+     * Running tasks are cancelled when this vragment gets detached or destroyed, and results are
+     * only delivered while it is started.
+     *
+     * @return
+     */
+    public VragmentTasks getTasks() {
+        return mDelegate.getTasks();
+    }
+
+    /**
+     * Schedules a chunk of main-thread work, e.g. part of the setup of this vragment, to run after
+     * one of the next frames within its time budget, so heavy vragments come up progressively
+     * instead of freezing the UI. Chunks only run while this vragment is attached; chunks
+     * scheduled before, e.g. in {@link #onCreateContent()}, are held until it gets attached.
+     * Pending chunks are cancelled when this vragment gets detached or destroyed, chunks scheduled
+     * after it was destroyed are dropped.
+     *
+     * @param priority e.g. {@link VragmentScheduler#PRIORITY_DEFAULT}; higher runs first
+     * @param chunk
+     * @return this vragment for concatenating further calls
+     * @throws IllegalStateException if not called on the main thread
+     * @see VragmentScheduler
+     */
+    @MainThread
+    public Vragment schedule(int priority, @NonNull Runnable chunk) {
+        mDelegate.schedule(priority, chunk);
+        return this;
+    }
+
+    /**
+     * Returns data previously cached by a vragment of the same class for given key, e.g. when
+     * this vragment is pushed again with the same arguments.
+     *
+     * @param key derived from the arguments, e.g. the id of the item shown
+     * @return the data, or null if none is cached or it expired
+     * @see VragmentDataCache
+     */
+    @Nullable
+    public <T> T getCachedData(@NonNull String key) {
+        return mDelegate.getCachedData(key);
+    }
+
+    /**
+     * Caches given data for vragments of the same class and given key. The data outlives this
+     * vragment, so it must not hold a context, e.g. views or drawables.
+     *
+     * @param key derived from the arguments, e.g. the id of the item shown
+     * @param data
+     * @see VragmentDataCache
+     */
+    public void putCachedData(@NonNull String key, @NonNull Object data) {
+        mDelegate.putCachedData(key, data);
+    }
+
+    /**
+     * Sets upper limit for lifecycle of this vragment, e.g. {@link Lifecycle.State#STARTED} to keep
+     * it from being resumed, or {@link Lifecycle.State#CREATED} to keep it stopped. The limit
+     * applies to all vragments nested in this one, too. If the vragment is currently beyond the
+     * limit, it is moved back immediately; if limit is raised, it is moved forward as far as the
+     * host activity or parent vragment allow.
+     *
+     * @param maxLifecycle
+     */
+    public void setMaxLifecycle(@NonNull Lifecycle.State maxLifecycle) {
+        mDelegate.setMaxLifecycle(maxLifecycle);
+    }
+
+    /**
+     * Sets whether this vragment may only be resumed while enough of it is visible on screen,
+     * e.g. for vragments used as cards in a scrolling list. Otherwise they are resumed as soon as
+     * their host is, even when far off-screen.
+     *
+     * @param tracked
+     * @see VragmentVisibilityTracker
+     */
+    public void setVisibilityTracked(boolean tracked) {
+        mDelegate.setVisibilityTracked(tracked);
+    }
+
+    public boolean isVisibilityTracked() {
+        return mDelegate.isVisibilityTracked();
+    }
+
+    /**
+     * Returns the upper limit for the lifecycle of this vragment.
+     *
+     * @return
+     * @see #setMaxLifecycle(Lifecycle.State)
+     */
+    @NonNull
+    public Lifecycle.State getMaxLifecycle() {
+        return mDelegate.getMaxLifecycle();
+    }
+
+    /**
+     * Invoked the first time this vragment becomes the visible top-most vragment of its container,
+     * or when it gets attached, if it was not added via a VragmentManager. Inflate the content
+     * here instead of in the constructor, e.g. <code>inflate(getContext(), R.layout.my_vragment, this)</code>,
+     * so vragments restored or pushed below others, but never shown, are cheap.
+     *
+     * A vragment is a FrameLayout itself, so a layout having a FrameLayout as root only adds a
+     * useless level to the hierarchy. Use <code>&lt;merge&gt;</code> as root instead, to make its
+     * children the direct children of this vragment. Likewise, a layout having a LinearLayout or
+     * ConstraintLayout as root belongs into a {@link LinearVragment} or {@link ConstraintVragment}
+     * with <code>&lt;merge&gt;</code> as root. Debug builds log a warning, if the content is
+     * wrapped in such a redundant layout.
+     *
+     * Until then, the vragment only takes up the space given by its layout params.
+     */
+    protected void onCreateContent() {
+
+    }
+
+    /**
+     * Checks, if {@link #onCreateContent()} was called already.
+     *
+     * @return
+     */
+    public boolean hasContent() {
+        return mDelegate.hasContent();
     }
 
     /**
@@ -141,60 +294,68 @@ public class Vragment extends FrameLayout implements LifecycleOwner {
     // -------------------------------------------------------------------- Some convenience methods
 
 
+    // The following methods use the resource cache of the activity, so e.g. drawables
+    // requested repeatedly while binding items share their constant state.
+
     public CharSequence getText(int resId) {
-        return getContext().getText(resId);
+        return mDelegate.getText(resId);
     }
 
     public String getString(int resId) {
-        return getContext().getString(resId);
+        return mDelegate.getString(resId);
     }
 
     public String getString(int resId, Object... formatArgs) {
-        return getContext().getString(resId, formatArgs);
+        return mDelegate.getString(resId, formatArgs);
     }
 
     public Drawable getDrawable(@DrawableRes int resId) {
-        return ContextCompat.getDrawable(getContext(), resId);
+        return mDelegate.getDrawable(resId);
     }
 
     public int getColor(@ColorRes int resId) {
-        return ContextCompat.getColor(getContext(), resId);
+        return mDelegate.getColor(resId);
     }
 
 
     // ------------------------------------------------------------------------------ Internal stuff
 
 
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (mDelegate.isPlaceholder()) {
+            // placeholder without content; nothing to measure but the space given to us
+            setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                    getDefaultSize(getSuggestedMinimumHeight(), heightMeasureSpec));
+            return;
+        }
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
         mIsAttachedToWindow = true;
-        if (getContext() != null && getContext() instanceof VragmentActivity) {
-            ((VragmentActivity)getContext()).onAttachVragment(this);
-        }
+        mDelegate.onAttachedToWindow();
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mIsAttachedToWindow = false;
-        if (getContext() != null && getContext() instanceof VragmentActivity) {
-            ((VragmentActivity)getContext()).onDetachVragment(this);
-        }
+        mDelegate.onDetachedFromWindow();
     }
 
     @Override
     protected Parcelable onSaveInstanceState() {
         super.onSaveInstanceState();
-        Bundle bundle = new Bundle();
-        bundle.putString(MARKER_KEY, mMarker);
-        return bundle;
+        return mDelegate.onSaveInstanceState();
     }
 
     @Override
     protected void onRestoreInstanceState(Parcelable state) {
         super.onRestoreInstanceState(state);
-        mMarker = ((Bundle)state).getString(MARKER_KEY);
+        mDelegate.onRestoreInstanceState(state);
     }
 
     /**
@@ -211,56 +372,31 @@ public class Vragment extends FrameLayout implements LifecycleOwner {
         }
     }
 
-    /**
-     * Sets internal marker, used by VragmentManager.
-     *
-     * @param marker
-     */
-    void setMarker(String marker) {
-        this.mMarker = marker;
-    }
-
-    /**
-     * Gets internal marker, used by VragmentManager.
-     *
-     * @return
-     */
-    String getMarker() {
-        return mMarker;
-    }
-
-    void performStart() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
-        onStart();
+    VragmentDelegate getDelegate() {
+        return mDelegate;
     }
 
     public void performResume() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_RESUME);
-        onResume();
+        mDelegate.performResume();
     }
 
     public void performPause() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_PAUSE);
-        onPause();
+        mDelegate.performPause();
     }
 
     public void performStop() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
-        onStop();
+        mDelegate.performStop();
     }
 
     public void performDestroy() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
-        onDestroy();
+        mDelegate.performDestroy();
     }
 
     public void performAttach() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
-        onAttach();
+        mDelegate.performAttach();
     }
 
     public void performDetach() {
-        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
-        onDetach();
+        mDelegate.performDetach();
     }
 }
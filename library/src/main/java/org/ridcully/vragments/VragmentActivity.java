@@ -1,8 +1,16 @@
 package org.ridcully.vragments;
 
+import android.content.res.Configuration;
 import android.os.Bundle;
+import androidx.activity.OnBackPressedCallback;
+import androidx.annotation.IdRes;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.Lifecycle;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * Activity that should be used for holding Vragments to correctly manage lifecycle callbacks.
@@ -24,6 +32,25 @@ public class VragmentActivity extends AppCompatActivity {
      * The vragment manager; should be used add or remove vragments-
      */
     private VragmentManager mVragmentManager;
+    /**
+     * Optional watchdog reporting slow vragments; null if none is set or not sampled.
+     */
+    private VragmentWatchdog mWatchdog;
+    /**
+     * Cache for resources used by vragments; created on first use.
+     */
+    private VragmentResourceCache mResourceCache;
+    /**
+     * Pops vragments on back presses; registered by {@link #setBackContainers(int...)}.
+     */
+    private OnBackPressedCallback mBackCallback;
+    /**
+     * Tracks visibility of vragments opting in to it; created on first use.
+     */
+    private VragmentVisibilityTracker mVisibilityTracker;
+    /** Set while VragmentManager moves vragments to another parent, which must not detach them. */
+    private boolean mMovingVragments;
+    private int[] mBackContainerIds;
 
 
     // -------------------------------------------------------------------------- Activity lifecycle
@@ -45,34 +72,58 @@ public class VragmentActivity extends AppCompatActivity {
     protected void onStart() {
         super.onStart();
         mIsStarted = true;
-        for (Vragment s : mVragmentManager.getAttachedVragments(true)) s.performStart();
+        for (VragmentDelegate s : mVragmentManager.getAttachedVragments(false)) s.dispatchStart();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         mIsResumed = true;
-        for (Vragment s : mVragmentManager.getAttachedVragments(true)) s.performResume();
+        for (VragmentDelegate s : mVragmentManager.getAttachedVragments(false)) s.dispatchResume();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         mIsResumed = false;
-        for (Vragment s : mVragmentManager.getAttachedVragments(true)) s.performPause();
+        for (VragmentDelegate s : mVragmentManager.getAttachedVragments(false)) s.dispatchPause();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         mIsStarted = false;
-        for (Vragment s : mVragmentManager.getAttachedVragments(true)) s.performStop();
+        for (VragmentDelegate s : mVragmentManager.getAttachedVragments(false)) s.dispatchStop();
+        // the process may be killed any time from now on
+        mVragmentManager.flushPersisted();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        for (Vragment s : mVragmentManager.getAttachedVragments(true)) s.performDestroy();
+        for (VragmentDelegate s : mVragmentManager.getAttachedVragments(false)) s.dispatchDestroy();
+        // user left, so the next start should be a fresh one
+        if (isFinishing()) mVragmentManager.deletePersisted();
+        if (mWatchdog != null) mWatchdog.stop();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // only called if the activity handles changes itself, otherwise it gets recreated anyway
+        if (mResourceCache != null) mResourceCache.clear();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mResourceCache != null) mResourceCache.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mResourceCache != null) mResourceCache.clear();
     }
 
     @Override
@@ -82,6 +133,28 @@ public class VragmentActivity extends AppCompatActivity {
     }
 
 
+    /**
+     * Adds stacks of all containers to the dump, e.g. of <code>adb shell dumpsys activity</code>.
+     * Pass <code>-c</code> for a compact dump of top-most vragments only, or <code>-v</code> for a
+     * verbose dump including approximate saved state sizes.
+     */
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd, @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        boolean verbose = false;
+        boolean compact = false;
+        if (args != null) {
+            for (String arg : args) {
+                if ("-v".equals(arg) || "--verbose".equals(arg)) verbose = true;
+                if ("-c".equals(arg) || "--compact".equals(arg)) compact = true;
+            }
+        }
+        writer.print(prefix);
+        writer.println("Vragments:");
+        if (mVragmentManager != null) mVragmentManager.dump(prefix + "  ", writer, verbose, compact);
+    }
+
+
     // --------------------------------------------------------------------------------- Own methods
 
 
@@ -95,6 +168,100 @@ public class VragmentActivity extends AppCompatActivity {
         return mVragmentManager;
     }
 
+    /**
+     * Lets back presses pop vragments from given containers via the OnBackPressedDispatcher, as
+     * done by {@link VragmentManager#onBackPressed(int...)}. Only if nothing is popped, the back
+     * press is passed on to other callbacks or the default handling, e.g. finishing the activity.
+     *
+     * Call {@link #prepareBack()} when a back gesture starts, so popping just reveals the
+     * vragments beneath the top-most ones of these containers.
+     *
+     * @param containerIds containers in order of precedence
+     */
+    public void setBackContainers(@IdRes int... containerIds) {
+        mBackContainerIds = containerIds;
+        if (mBackCallback == null) {
+            mBackCallback = new OnBackPressedCallback(true) {
+                @Override
+                public void handleOnBackPressed() {
+                    if (mVragmentManager.onBackPressed(mBackContainerIds)) return;
+                    // nothing popped, so pass on to next callback or default handling
+                    setEnabled(false);
+                    getOnBackPressedDispatcher().onBackPressed();
+                    setEnabled(true);
+                }
+            };
+            getOnBackPressedDispatcher().addCallback(this, mBackCallback);
+        }
+    }
+
+    /**
+     * Creates content of the vragments beneath the top-most ones of the back containers, e.g. when
+     * a back gesture starts, so completing it only reveals them. Does nothing if no back
+     * containers are set.
+     *
+     * @see #setBackContainers(int...)
+     */
+    public void prepareBack() {
+        if (mBackContainerIds != null) mVragmentManager.prepareBack(mBackContainerIds);
+    }
+
+    /**
+     * Returns the tracker moving vragments between STARTED and RESUMED by their visible fraction,
+     * e.g. for setting its thresholds.
+     *
+     * @return the visibility tracker
+     * @see VragmentView#setVisibilityTracked(boolean)
+     */
+    public VragmentVisibilityTracker getVisibilityTracker() {
+        if (mVisibilityTracker == null) mVisibilityTracker = new VragmentVisibilityTracker(this);
+        return mVisibilityTracker;
+    }
+
+    /**
+     * Sets watchdog that reports vragments being slow in their lifecycle callbacks or
+     * construction. Should be called in {@link #onCreate(Bundle)} at the latest, so vragments
+     * restored from saved state are watched as well. Construction is only measured for vragments
+     * built by {@link VragmentManager}, not for vragments inflated from layouts.
+     *
+     * @param watchdog the watchdog, or null to remove the current one
+     */
+    public void setWatchdog(@Nullable VragmentWatchdog watchdog) {
+        if (mWatchdog != null) mWatchdog.stop();
+        mWatchdog = watchdog != null && watchdog.start() ? watchdog : null;
+    }
+
+    /**
+     * Returns the watchdog, if one is set and active for this activity.
+     *
+     * @return
+     */
+    @Nullable
+    VragmentWatchdog getWatchdog() {
+        return mWatchdog;
+    }
+
+    /**
+     * Returns the cache backing resource helpers of vragments, like {@link Vragment#getDrawable(int)}.
+     *
+     * @return
+     */
+    VragmentResourceCache getResourceCache() {
+        if (mResourceCache == null) mResourceCache = new VragmentResourceCache(this);
+        return mResourceCache;
+    }
+
+    /**
+     * Returns the lifecycle state vragments directly hosted by this activity may reach at most.
+     *
+     * @return
+     */
+    Lifecycle.State getVragmentsLifecycleState() {
+        if (mIsResumed) return Lifecycle.State.RESUMED;
+        if (mIsStarted) return Lifecycle.State.STARTED;
+        return Lifecycle.State.CREATED;
+    }
+
     /**
      * Called by vragment to notify us, that given vragment has been attached. This method should
      * never be called directly, but is called by the vragments automatically when they get attached
@@ -103,16 +270,31 @@ public class VragmentActivity extends AppCompatActivity {
      *
      * <ul>
      *     <li>{@link Vragment#onAttach())</li>
-     *     <li>{@link Vragment#onStart()} only if this activity is started</li>
-     *     <li>{@link Vragment#onResume()} only if this activity is resumed</li>
+     *     <li>{@link Vragment#onStart()} only if this activity (or the parent vragment) is started</li>
+     *     <li>{@link Vragment#onResume()} only if this activity (or the parent vragment) is resumed</li>
      * </ul>
      *
+     * Callbacks beyond {@link Vragment#getMaxLifecycle()} are not called.
+     *
      * @param vragment
      */
-    public void onAttachVragment(Vragment vragment) {
-        vragment.performAttach();
-        if (mIsStarted) vragment.performStart();
-        if (mIsResumed) vragment.performResume();
+    public void onAttachVragment(VragmentView vragment) {
+        onAttachVragment(VragmentDelegate.of(vragment));
+    }
+
+    void onAttachVragment(VragmentDelegate vragment) {
+        if (mMovingVragments) return;
+        if (vragment.isVisibilityTracked()) getVisibilityTracker().track(vragment);
+        Lifecycle.State host = vragment.getHostLifecycleState();
+        Lifecycle.State max = vragment.getEffectiveMaxLifecycle();
+        int state = VragmentDelegate.ATTACHED;
+        if (host.isAtLeast(Lifecycle.State.STARTED) && max.isAtLeast(Lifecycle.State.STARTED)) {
+            state = VragmentDelegate.STARTED;
+        }
+        if (host.isAtLeast(Lifecycle.State.RESUMED) && max.isAtLeast(Lifecycle.State.RESUMED)) {
+            state = VragmentDelegate.RESUMED;
+        }
+        vragment.moveToState(state);
     }
 
     /**
@@ -122,17 +304,31 @@ public class VragmentActivity extends AppCompatActivity {
      * of the vragment are called in following order:
      *
      * <ul>
-     *     <li>{@link Vragment#onPause()} only if this activity is started</li>
-     *     <li>{@link Vragment#onStop()} only if this activity is resumed</li>
+     *     <li>{@link Vragment#onPause()} only if the vragment is resumed</li>
+     *     <li>{@link Vragment#onStop()} only if the vragment is started</li>
      *     <li>{@link Vragment#onDetach())</li>
      * </ul>
      *
      * @param vragment
      */
-    public void onDetachVragment(Vragment vragment) {
-        if (mIsResumed) vragment.performPause();
-        if (mIsStarted) vragment.performStop();
-        vragment.performDetach();
+    public void onDetachVragment(VragmentView vragment) {
+        onDetachVragment(VragmentDelegate.of(vragment));
+    }
+
+    void onDetachVragment(VragmentDelegate vragment) {
+        if (mMovingVragments) return;
+        vragment.moveToState(VragmentDelegate.DETACHED);
+        if (mVisibilityTracker != null) mVisibilityTracker.untrack(vragment);
+    }
+
+    /**
+     * Sets whether vragments are being moved to another parent; while set, attaching and
+     * detaching them to and from the window leaves their lifecycle alone.
+     *
+     * @param moving
+     */
+    void setMovingVragments(boolean moving) {
+        mMovingVragments = moving;
     }
 
 
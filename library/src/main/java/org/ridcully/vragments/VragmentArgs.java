@@ -0,0 +1,35 @@
+package org.ridcully.vragments;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a class as typed argument holder for a Vragment. For every annotated class, the
+ * vragments compiler generates a {@code <ClassName>_Codec} in the same package, implementing
+ * {@link ArgsCodec} with plain, boxing-free put/get calls for each field - no reflection and no
+ * java serialization involved.
+ *
+ * <p>All non-private, non-static, non-transient fields are written under their field name.
+ * Supported field types are primitives and their arrays, String, CharSequence (and arrays),
+ * enums, Bundle, Parcelable (and arrays), ArrayLists of String, CharSequence, Integer or
+ * Parcelables, and other {@code @VragmentArgs} classes. The class needs a non-private no-arg
+ * constructor.</p>
+ *
+ * <pre>
+ * &#64;VragmentArgs
+ * public class DetailArgs {
+ *     long id;
+ *     String title;
+ * }
+ *
+ * Bundle args = DetailArgs_Codec.toBundle(detailArgs);
+ * DetailArgs restored = DetailArgs_Codec.fromBundle(args);
+ * </pre>
+ */
+
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface VragmentArgs {
+}
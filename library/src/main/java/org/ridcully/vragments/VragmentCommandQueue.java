@@ -0,0 +1,272 @@
+package org.ridcully.vragments;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.IdRes;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Queue of navigation operations for a {@link VragmentManager}, which may be fed from any thread.
+ * Queued operations are applied on the main thread once per frame, so a burst of operations
+ * causes only one layout pass. Before applying them, redundant operations are dropped, e.g. a
+ * push directly followed by a pop on the same container, or anything followed by a clear.
+ *
+ * As vragments are views, they have to be created on the main thread too, so operations adding
+ * vragments take a {@link VragmentFactory}, which is only invoked if the operation is applied.
+ *
+ * Operations still queued when the activity or the vragment hosting the manager got destroyed
+ * are dropped.
+ */
+
+public final class VragmentCommandQueue {
+
+    private final static int PUSH = 0;
+    private final static int POP = 1;
+    private final static int POP_TO_MARKER = 2;
+    private final static int CLEAR = 3;
+    private final static int SET = 4;
+    private final static int SWITCH_STACK = 5;
+
+    /**
+     * Creates a vragment on the main thread, when a queued operation is applied.
+     */
+    public interface VragmentFactory {
+
+        @NonNull
+        VragmentView create(@NonNull Context context);
+    }
+
+    private static final class Command {
+        final int type;
+        final int containerId;
+        final VragmentFactory factory;
+        /** Marker for PUSH, POP_TO_MARKER and SET, stack name for SWITCH_STACK. */
+        final String name;
+        boolean dropped;
+
+        Command(int type, int containerId, VragmentFactory factory, String name) {
+            this.type = type;
+            this.containerId = containerId;
+            this.factory = factory;
+            this.name = name;
+        }
+    }
+
+    private final VragmentManager mVragmentManager;
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentLinkedQueue<Command> mQueue = new ConcurrentLinkedQueue<>();
+    /** Whether a frame callback for draining the queue is posted already. */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    /** Commands of the current frame; only used on the main thread, reused across frames. */
+    private final ArrayList<Command> mBatch = new ArrayList<>();
+    private final Choreographer.FrameCallback mDrain = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            drain();
+        }
+    };
+    /** Posts mDrain; Choreographer is per thread, so this has to run on the main thread. */
+    private final Runnable mPostDrain = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(mDrain);
+        }
+    };
+
+    VragmentCommandQueue(VragmentManager vragmentManager, Context context) {
+        mVragmentManager = vragmentManager;
+        mContext = context;
+    }
+
+    /**
+     * Queues {@link VragmentManager#push(int, VragmentView)}.
+     *
+     * @param containerId
+     * @param factory
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue push(@IdRes int containerId, @NonNull VragmentFactory factory) {
+        return push(containerId, factory, null);
+    }
+
+    /**
+     * Queues {@link VragmentManager#push(int, VragmentView, String)}.
+     *
+     * @param containerId
+     * @param factory
+     * @param marker
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue push(@IdRes int containerId, @NonNull VragmentFactory factory, String marker) {
+        return enqueue(new Command(PUSH, containerId, factory, marker));
+    }
+
+    /**
+     * Queues {@link VragmentManager#pop(int)}.
+     *
+     * @param containerId
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue pop(@IdRes int containerId) {
+        return enqueue(new Command(POP, containerId, null, null));
+    }
+
+    /**
+     * Queues {@link VragmentManager#popToMarker(int, String)}.
+     *
+     * @param containerId
+     * @param marker
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue popToMarker(@IdRes int containerId, String marker) {
+        return enqueue(new Command(POP_TO_MARKER, containerId, null, marker));
+    }
+
+    /**
+     * Queues {@link VragmentManager#clear(int)}.
+     *
+     * @param containerId
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue clear(@IdRes int containerId) {
+        return enqueue(new Command(CLEAR, containerId, null, null));
+    }
+
+    /**
+     * Queues {@link VragmentManager#set(int, VragmentView, String)}.
+     *
+     * @param containerId
+     * @param factory
+     * @param marker
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue set(@IdRes int containerId, @NonNull VragmentFactory factory, String marker) {
+        return enqueue(new Command(SET, containerId, factory, marker));
+    }
+
+    /**
+     * Queues {@link VragmentManager#switchStack(int, String)}.
+     *
+     * @param containerId
+     * @param stackName
+     * @return this queue for concatenating further operations
+     */
+    @AnyThread
+    public VragmentCommandQueue switchStack(@IdRes int containerId, @NonNull String stackName) {
+        return enqueue(new Command(SWITCH_STACK, containerId, null, stackName));
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    private VragmentCommandQueue enqueue(Command command) {
+        mQueue.offer(command);
+        if (mScheduled.compareAndSet(false, true)) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mPostDrain.run();
+            } else {
+                mMainHandler.post(mPostDrain);
+            }
+        }
+        return this;
+    }
+
+    private void drain() {
+        // reset first, so commands queued while draining schedule another frame
+        mScheduled.set(false);
+        if (mVragmentManager.isHostDestroyed()) {
+            // nothing left to navigate in
+            mQueue.clear();
+            return;
+        }
+        Command command;
+        while ((command = mQueue.poll()) != null) {
+            collapse(command);
+            mBatch.add(command);
+        }
+        try {
+            for (int i = 0; i < mBatch.size(); i++) {
+                if (!mBatch.get(i).dropped) apply(mBatch.get(i));
+            }
+        } finally {
+            // commands are not replayed, even if one of them threw
+            mBatch.clear();
+        }
+    }
+
+    /**
+     * Drops commands of current batch made redundant by given command, which is about to be
+     * added. Only commands on the same stack are considered, so a stack switch ends the search.
+     *
+     * @param command
+     */
+    private void collapse(Command command) {
+        switch (command.type) {
+            case POP:
+                Command previous = findPrevious(command.containerId);
+                if (previous != null && previous.type == PUSH) {
+                    previous.dropped = true;
+                    command.dropped = true;
+                }
+                break;
+            case CLEAR:
+            case SET:
+                for (int i = mBatch.size() - 1; i >= 0; i--) {
+                    Command other = mBatch.get(i);
+                    if (other.containerId != command.containerId || other.dropped) continue;
+                    if (other.type == SWITCH_STACK) break;
+                    other.dropped = true;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private Command findPrevious(int containerId) {
+        for (int i = mBatch.size() - 1; i >= 0; i--) {
+            Command other = mBatch.get(i);
+            if (other.containerId == containerId && !other.dropped) return other;
+        }
+        return null;
+    }
+
+    private void apply(Command command) {
+        switch (command.type) {
+            case PUSH:
+                mVragmentManager.push(command.containerId, command.factory.create(mContext), command.name);
+                break;
+            case POP:
+                mVragmentManager.pop(command.containerId);
+                break;
+            case POP_TO_MARKER:
+                mVragmentManager.popToMarker(command.containerId, command.name);
+                break;
+            case CLEAR:
+                mVragmentManager.clear(command.containerId);
+                break;
+            case SET:
+                mVragmentManager.set(command.containerId, command.factory.create(mContext), command.name);
+                break;
+            case SWITCH_STACK:
+                mVragmentManager.switchStack(command.containerId, command.name);
+                break;
+        }
+    }
+}
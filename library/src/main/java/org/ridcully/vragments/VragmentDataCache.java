@@ -0,0 +1,203 @@
+package org.ridcully.vragments;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.res.Configuration;
+import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
+import android.util.LruCache;
+import android.view.View;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Application wide cache for data loaded by vragments, keyed by vragment class and a key derived
+ * from the vragment's arguments, e.g. the id of the item shown. Lets a vragment show its data
+ * instantly, when it is pushed again with the same arguments.
+ *
+ * The cache holds a limited number of entries, dropping the least recently used ones first.
+ * Entries expire after a time to live and the cache is trimmed, when the system is low on memory.
+ * Vragments usually use it via {@link VragmentView#getCachedData(String)} and
+ * {@link VragmentView#putCachedData(String, Object)}.
+ *
+ * As the cache lives as long as the application, cached data must not hold a {@link Context},
+ * e.g. views, drawables or activities, as it would leak the activity. In debuggable builds,
+ * putting a View, Drawable or Context throws.
+ */
+
+public final class VragmentDataCache implements ComponentCallbacks2 {
+
+    private final static int DEFAULT_MAX_ENTRIES = 32;
+    private final static long DEFAULT_TTL_MS = 5 * 60 * 1000;
+
+    private static VragmentDataCache sInstance;
+
+    private final LruCache<Key, Entry> mEntries = new LruCache<>(DEFAULT_MAX_ENTRIES);
+    private volatile long mDefaultTtlMs = DEFAULT_TTL_MS;
+    /** Whether the application is debuggable, so data is checked for holding a context. */
+    private final boolean mCheckData;
+
+    private static final class Key {
+        final Class<?> vragmentClass;
+        final String key;
+
+        Key(Class<?> vragmentClass, String key) {
+            this.vragmentClass = vragmentClass;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return vragmentClass == other.vragmentClass && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * vragmentClass.hashCode() + key.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        /** Expiry in {@link SystemClock#elapsedRealtime()} time base. */
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private VragmentDataCache(boolean checkData) {
+        mCheckData = checkData;
+    }
+
+    /**
+     * Returns the cache of the application; it is created on first call.
+     *
+     * @param context any context of the application
+     * @return the cache
+     */
+    @AnyThread
+    public static synchronized VragmentDataCache get(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new VragmentDataCache(
+                    (context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Sets the maximum number of entries; 32 by default.
+     *
+     * @param maxEntries
+     * @return this cache for concatenating further calls
+     */
+    public VragmentDataCache setMaxEntries(int maxEntries) {
+        mEntries.resize(maxEntries);
+        return this;
+    }
+
+    /**
+     * Sets time to live for entries put without explicit one; 5 minutes by default.
+     *
+     * @param ttlMs
+     * @return this cache for concatenating further calls
+     */
+    public VragmentDataCache setDefaultTtl(long ttlMs) {
+        mDefaultTtlMs = ttlMs;
+        return this;
+    }
+
+    /**
+     * Returns data cached for given vragment class and key.
+     *
+     * @param vragmentClass
+     * @param key
+     * @return the data, or null if none is cached or it expired
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T get(@NonNull Class<? extends VragmentView> vragmentClass, @NonNull String key) {
+        Key entryKey = new Key(vragmentClass, key);
+        Entry entry = mEntries.get(entryKey);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() >= entry.expiresAt) {
+            mEntries.remove(entryKey);
+            return null;
+        }
+        return (T) entry.value;
+    }
+
+    /**
+     * Caches data for given vragment class and key, using the default time to live.
+     *
+     * @param vragmentClass
+     * @param key
+     * @param data must not hold a context
+     */
+    public void put(@NonNull Class<? extends VragmentView> vragmentClass, @NonNull String key, @NonNull Object data) {
+        put(vragmentClass, key, data, mDefaultTtlMs);
+    }
+
+    /**
+     * Caches data for given vragment class and key.
+     *
+     * @param vragmentClass
+     * @param key
+     * @param data
+     * @param ttlMs time to live in milliseconds
+     * @throws IllegalArgumentException in debuggable builds, if data is a View, Drawable or Context
+     */
+    public void put(@NonNull Class<? extends VragmentView> vragmentClass, @NonNull String key, @NonNull Object data, long ttlMs) {
+        if (mCheckData && (data instanceof View || data instanceof Drawable || data instanceof Context)) {
+            throw new IllegalArgumentException("Cached data must not hold a context, but got " + data.getClass().getName());
+        }
+        mEntries.put(new Key(vragmentClass, key), new Entry(data, SystemClock.elapsedRealtime() + ttlMs));
+    }
+
+    /**
+     * Removes data cached for given vragment class and key, e.g. when it became stale.
+     *
+     * @param vragmentClass
+     * @param key
+     */
+    public void remove(@NonNull Class<? extends VragmentView> vragmentClass, @NonNull String key) {
+        mEntries.remove(new Key(vragmentClass, key));
+    }
+
+    /**
+     * Removes all cached data.
+     */
+    public void clear() {
+        mEntries.evictAll();
+    }
+
+
+    // -------------------------------------------------------------------------- ComponentCallbacks
+
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            mEntries.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            mEntries.trimToSize(mEntries.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        mEntries.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig) {
+    }
+}
@@ -0,0 +1,844 @@
+package org.ridcully.vragments;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.widget.FrameLayout;
+import android.widget.LinearLayout;
+
+import androidx.annotation.ColorRes;
+import androidx.annotation.DrawableRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.constraintlayout.widget.ConstraintLayout;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lifecycle and state of a vragment, shared by {@link Vragment}, {@link LinearVragment} and
+ * {@link ConstraintVragment}, which forward to it. Within the library, vragments are handled
+ * via their delegate, so all of them are handled the same, whatever layout they are based on.
+ */
+
+abstract class VragmentDelegate {
+
+    private final static String TAG = Vragment.class.getSimpleName();
+    private final static String MARKER_KEY = "org.ridcully.vfragment.marker";
+
+    /** Tracked lifecycle states, in ascending order; see {@link #moveToState(int)}. */
+    final static int DETACHED = 0;
+    final static int ATTACHED = 1;
+    final static int STARTED = 2;
+    final static int RESUMED = 3;
+
+    /** The vragment this is the delegate of, as view and as vragment; the same instance. */
+    private final ViewGroup mView;
+    private final VragmentView mVragment;
+    private String mMarker;
+    private Bundle mArguments;
+    /** Live arguments passed in-process via VragmentManager; only flattened to mArguments on demand. */
+    private Object mLiveArguments;
+    private ArgsCodec mLiveArgumentsCodec;
+    /** Whether mArguments is a copy owned by this vragment, so live arguments can be written into it. */
+    private boolean mOwnsArguments;
+    private LifecycleRegistry mLifecycle;
+    /** Info saved by VragmentManager for this vragment; cached as it does not change once pushed. */
+    private Bundle mSavedInfo;
+    /** The VragmentManager and container this vragment was added to, if any. */
+    private VragmentManager mOwnerManager;
+    private int mContainerId;
+    /** Manager for vragments in containers of this vragment; created on first use. */
+    private VragmentManager mChildVragmentManager;
+    /** Background work bound to this vragment; created on first use. */
+    private VragmentTasks mTasks;
+    /** Whether chunks were scheduled since last detach, which then need cancelling. */
+    private boolean mHasScheduledChunks;
+    /** Chunks scheduled while detached; handed to the scheduler once attached. */
+    private ArrayList<VragmentScheduler.Chunk> mPendingChunks;
+    /** Upper limit for lifecycle of this vragment and all vragments nested in it. */
+    private Lifecycle.State mMaxLifecycle = Lifecycle.State.RESUMED;
+    /** Whether resuming depends on visible fraction, and whether enough of this vragment is visible. */
+    private boolean mVisibilityTracked;
+    private boolean mVisibleEnough = true;
+    /** Tracked lifecycle state; only changed by the perform methods. */
+    private int mState = DETACHED;
+    private boolean mIsDestroyed;
+    /** Whether {@link #onCreateContent()} was called already. */
+    private boolean mHasContent;
+    /** Saved state of child vragments, restored once content, holding their containers, exists. */
+    private Bundle mPendingChildState;
+
+    <V extends ViewGroup & VragmentView> VragmentDelegate(@NonNull V vragment, Bundle args) {
+        mView = vragment;
+        mVragment = vragment;
+        mArguments = args;
+        mLifecycle = new LifecycleRegistry(vragment);
+        mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_CREATE);
+    }
+
+    /**
+     * Returns the delegate of given view, if it is a vragment.
+     *
+     * @param view
+     * @return the delegate, or null if given view is no vragment
+     */
+    @Nullable
+    static VragmentDelegate of(@Nullable View view) {
+        if (view instanceof Vragment) return ((Vragment) view).getDelegate();
+        if (view instanceof LinearVragment) return ((LinearVragment) view).getDelegate();
+        if (view instanceof ConstraintVragment) return ((ConstraintVragment) view).getDelegate();
+        return null;
+    }
+
+    /**
+     * Returns the delegate of given vragment.
+     *
+     * @param vragment
+     * @return the delegate
+     * @throws IllegalArgumentException if given vragment extends none of the vragment bases
+     */
+    @NonNull
+    static VragmentDelegate of(@NonNull VragmentView vragment) {
+        VragmentDelegate delegate = vragment instanceof View ? of((View) vragment) : null;
+        if (delegate == null) {
+            throw new IllegalArgumentException(vragment.getClass().getName()
+                    + " must extend Vragment, LinearVragment or ConstraintVragment");
+        }
+        return delegate;
+    }
+
+    /**
+     * Invokes onCreateContent() of the vragment, which is protected in the bases.
+     */
+    abstract void onCreateContent();
+
+    @NonNull
+    ViewGroup getView() {
+        return mView;
+    }
+
+    @NonNull
+    VragmentView getVragment() {
+        return mVragment;
+    }
+
+    @NonNull
+    Lifecycle getLifecycle() {
+        return mLifecycle;
+    }
+
+    Bundle getArguments() {
+        materializeArguments();
+        return mArguments;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T getArguments(@NonNull ArgsCodec<T> codec) {
+        if (mLiveArguments == null && mArguments != null) {
+            mLiveArguments = codec.read(mArguments);
+        }
+        return (T) mLiveArguments;
+    }
+
+    VragmentManager getChildVragmentManager() {
+        if (mChildVragmentManager == null) {
+            if (!(getContext() instanceof VragmentActivity)) {
+                throw new IllegalStateException("Child VragmentManager requires vragment to be created with a VragmentActivity");
+            }
+            mChildVragmentManager = new VragmentManager((VragmentActivity) getContext(), this);
+        }
+        return mChildVragmentManager;
+    }
+
+    VragmentTasks getTasks() {
+        if (mTasks == null) {
+            mTasks = new VragmentTasks();
+            if (mState >= STARTED) mTasks.onStarted();
+        }
+        return mTasks;
+    }
+
+    void schedule(int priority, @NonNull Runnable chunk) {
+        VragmentScheduler.checkMainThread();
+        if (mIsDestroyed) return;
+        VragmentScheduler.Chunk scheduled = new VragmentScheduler.Chunk(this, priority, chunk);
+        if (mState >= ATTACHED) {
+            mHasScheduledChunks = true;
+            VragmentScheduler.get().schedule(scheduled);
+        } else {
+            // the scheduler only holds chunks of attached vragments, so none leak via it
+            if (mPendingChunks == null) mPendingChunks = new ArrayList<>();
+            mPendingChunks.add(scheduled);
+        }
+    }
+
+    <T> T getCachedData(@NonNull String key) {
+        return VragmentDataCache.get(getContext()).get(mVragment.getClass(), key);
+    }
+
+    void putCachedData(@NonNull String key, @NonNull Object data) {
+        VragmentDataCache.get(getContext()).put(mVragment.getClass(), key, data);
+    }
+
+    void setMaxLifecycle(@NonNull Lifecycle.State maxLifecycle) {
+        mMaxLifecycle = maxLifecycle;
+        if (!maxLifecycle.isAtLeast(Lifecycle.State.RESUMED)) dispatchPause();
+        if (!maxLifecycle.isAtLeast(Lifecycle.State.STARTED)) dispatchStop();
+        if (mState >= ATTACHED) {
+            Lifecycle.State host = getHostLifecycleState();
+            if (host.isAtLeast(Lifecycle.State.STARTED)) dispatchStart();
+            if (host.isAtLeast(Lifecycle.State.RESUMED)) dispatchResume();
+        }
+    }
+
+    void setVisibilityTracked(boolean tracked) {
+        if (tracked == mVisibilityTracked) return;
+        mVisibilityTracked = tracked;
+        if (mState < ATTACHED || !(getContext() instanceof VragmentActivity)) return;
+        VragmentVisibilityTracker tracker = ((VragmentActivity) getContext()).getVisibilityTracker();
+        if (tracked) {
+            tracker.track(this);
+        } else {
+            tracker.untrack(this);
+        }
+    }
+
+    boolean isVisibilityTracked() {
+        return mVisibilityTracked;
+    }
+
+    @NonNull
+    Lifecycle.State getMaxLifecycle() {
+        return mMaxLifecycle;
+    }
+
+    boolean hasContent() {
+        return mHasContent;
+    }
+
+    boolean isAttachedToWindow() {
+        return mView.isAttachedToWindow();
+    }
+
+    CharSequence getText(int resId) {
+        VragmentResourceCache cache = findResourceCache();
+        return cache != null ? cache.getText(resId) : getContext().getText(resId);
+    }
+
+    String getString(int resId) {
+        VragmentResourceCache cache = findResourceCache();
+        return cache != null ? cache.getString(resId) : getContext().getString(resId);
+    }
+
+    String getString(int resId, Object... formatArgs) {
+        VragmentResourceCache cache = findResourceCache();
+        return cache != null ? cache.getString(resId, formatArgs) : getContext().getString(resId, formatArgs);
+    }
+
+    Drawable getDrawable(@DrawableRes int resId) {
+        VragmentResourceCache cache = findResourceCache();
+        return cache != null ? cache.getDrawable(resId) : ContextCompat.getDrawable(getContext(), resId);
+    }
+
+    int getColor(@ColorRes int resId) {
+        VragmentResourceCache cache = findResourceCache();
+        return cache != null ? cache.getColor(resId) : ContextCompat.getColor(getContext(), resId);
+    }
+
+
+    // ------------------------------------------------------------------- Forwarded view callbacks
+
+
+    /**
+     * Checks whether the vragment should only take up the space given by its layout params, as
+     * it has no content yet.
+     *
+     * @return
+     */
+    boolean isPlaceholder() {
+        return !mHasContent && mView.getChildCount() == 0;
+    }
+
+    void onAttachedToWindow() {
+        // vragments not added via a manager, e.g. declared in a layout, are always shown
+        if (mOwnerManager == null) ensureContent();
+        if (getContext() instanceof VragmentActivity) {
+            ((VragmentActivity) getContext()).onAttachVragment(this);
+        }
+    }
+
+    void onDetachedFromWindow() {
+        if (getContext() instanceof VragmentActivity) {
+            ((VragmentActivity) getContext()).onDetachVragment(this);
+        }
+    }
+
+    Parcelable onSaveInstanceState() {
+        Bundle bundle = new Bundle();
+        bundle.putString(MARKER_KEY, mMarker);
+        return bundle;
+    }
+
+    void onRestoreInstanceState(Parcelable state) {
+        mMarker = ((Bundle) state).getString(MARKER_KEY);
+    }
+
+
+    // ------------------------------------------------------------------------------ Internal stuff
+
+
+    /**
+     * Sets internal marker, used by VragmentManager.
+     *
+     * @param marker
+     */
+    void setMarker(String marker) {
+        this.mMarker = marker;
+    }
+
+    /**
+     * Gets internal marker, used by VragmentManager.
+     *
+     * @return
+     */
+    String getMarker() {
+        return mMarker;
+    }
+
+    /**
+     * Sets live arguments, used by VragmentManager. They are kept as they are, until the
+     * arguments bundle is actually needed, e.g. when the activity saves its state.
+     *
+     * @param arguments
+     * @param codec
+     */
+    <T> void setLiveArguments(T arguments, ArgsCodec<T> codec) {
+        mLiveArguments = arguments;
+        mLiveArgumentsCodec = codec;
+    }
+
+    /**
+     * Sets arguments bundle when vragment got rebuilt by VragmentManager without an arguments
+     * constructor.
+     *
+     * @param arguments
+     */
+    void setArguments(Bundle arguments) {
+        mArguments = arguments;
+    }
+
+    /**
+     * Sets the VragmentManager and container this vragment was added to.
+     *
+     * @param ownerManager
+     * @param containerId
+     */
+    void setOwner(VragmentManager ownerManager, int containerId) {
+        mOwnerManager = ownerManager;
+        mContainerId = containerId;
+    }
+
+    /**
+     * Returns the child vragment manager, if it was created already.
+     *
+     * @return
+     */
+    VragmentManager peekChildVragmentManager() {
+        return mChildVragmentManager;
+    }
+
+    /**
+     * Called by child vragment manager, when some of its containers changed. As the saved info
+     * of this vragment includes the child vragments, it has to be saved again.
+     */
+    void onChildVragmentsChanged() {
+        mSavedInfo = null;
+        if (mOwnerManager != null) mOwnerManager.markDirty(mContainerId);
+    }
+
+    /**
+     * Creates content of this vragment, if not done yet, and restores state of child vragments
+     * held back until then.
+     */
+    void ensureContent() {
+        if (mHasContent) return;
+        mHasContent = true;
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_CREATE_CONTENT);
+        try {
+            onCreateContent();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+        if ((getContext().getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) {
+            checkRedundantWrapper();
+        }
+        if (mPendingChildState != null) {
+            Bundle childState = mPendingChildState;
+            mPendingChildState = null;
+            getChildVragmentManager().onRestoreInstanceState(childState);
+        }
+    }
+
+    /**
+     * Logs a warning, if the only child of this vragment is a plain FrameLayout, LinearLayout or
+     * ConstraintLayout filling it and adding neither background nor padding. It could be replaced
+     * by a <code>&lt;merge&gt;</code>, in a vragment based on the same layout.
+     */
+    private void checkRedundantWrapper() {
+        if (mView.getChildCount() != 1) return;
+        View child = mView.getChildAt(0);
+        // subclasses of the layouts may add behaviour, so only flag the layouts themselves
+        Class<?> base;
+        if (child.getClass() == FrameLayout.class) {
+            base = Vragment.class;
+        } else if (child.getClass() == LinearLayout.class) {
+            base = LinearVragment.class;
+        } else if (child.getClass() == ConstraintLayout.class) {
+            base = ConstraintVragment.class;
+        } else {
+            return;
+        }
+        ViewGroup.LayoutParams params = child.getLayoutParams();
+        if (params == null || params.width != ViewGroup.LayoutParams.MATCH_PARENT
+                || params.height != ViewGroup.LayoutParams.MATCH_PARENT) return;
+        if (child.getBackground() != null || child.getPaddingLeft() != 0 || child.getPaddingTop() != 0
+                || child.getPaddingRight() != 0 || child.getPaddingBottom() != 0) return;
+        String advice = base.isInstance(mView)
+                ? "use <merge> as root of its layout instead"
+                : "extend " + base.getSimpleName() + " and use <merge> as root of its layout instead";
+        Log.w(TAG, mView.getClass().getName() + " wraps its content in a redundant "
+                + child.getClass().getSimpleName() + ", " + advice);
+    }
+
+    /**
+     * Restores state of child vragments, used by VragmentManager. Their containers are usually
+     * part of the content, so restoring is deferred until the content is created.
+     *
+     * @param childState
+     */
+    void restoreChildState(Bundle childState) {
+        if (mHasContent) {
+            getChildVragmentManager().onRestoreInstanceState(childState);
+        } else {
+            mPendingChildState = childState;
+        }
+    }
+
+    /**
+     * Returns saved state of child vragments not restored yet, as content was not created yet.
+     *
+     * @return
+     */
+    Bundle getPendingChildState() {
+        return mPendingChildState;
+    }
+
+    /**
+     * Called when lifecycle state of this vragment or the snapshot of its child vragment manager
+     * changed, so the snapshot of the manager holding this vragment gets rebuilt.
+     */
+    void onSnapshotChanged() {
+        if (mOwnerManager != null) mOwnerManager.invalidateSnapshot(mContainerId);
+    }
+
+    /**
+     * Gets info cached by VragmentManager for saving state.
+     *
+     * @return
+     */
+    Bundle getSavedInfo() {
+        return mSavedInfo;
+    }
+
+    /**
+     * Sets info cached by VragmentManager for saving state.
+     *
+     * @param savedInfo
+     */
+    void setSavedInfo(Bundle savedInfo) {
+        mSavedInfo = savedInfo;
+    }
+
+    /**
+     * Writes current values of the live arguments, if any, into the arguments bundle; used by
+     * VragmentManager when saving state, as the live instance may have changed since.
+     */
+    void refreshArguments() {
+        materializeArguments();
+    }
+
+    /**
+     * Returns the arguments bundle as it is, without writing live arguments into it.
+     * For diagnostics and comparisons that must not change this vragment.
+     *
+     * @return
+     */
+    Bundle peekArguments() {
+        return mArguments;
+    }
+
+    /**
+     * Returns the arguments as they would be saved now, without writing live arguments into the
+     * arguments bundle of this vragment; live arguments are written into a copy instead.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    Bundle currentArguments() {
+        if (mLiveArgumentsCodec == null) return mArguments;
+        Bundle arguments = mArguments != null ? new Bundle(mArguments) : new Bundle();
+        mLiveArgumentsCodec.write(mLiveArguments, arguments);
+        return arguments;
+    }
+
+    /**
+     * Returns whether live arguments were passed to this vragment.
+     *
+     * @return
+     */
+    boolean hasLiveArguments() {
+        return mLiveArgumentsCodec != null;
+    }
+
+    /**
+     * Writes live arguments into the arguments bundle. Values of the bundle provided to the
+     * constructor are kept, unless overwritten by the live arguments. The bundle is copied once,
+     * so the constructor's bundle is left alone, and then written in place, so infos saved by
+     * VragmentManager, which reference it, stay up to date.
+     */
+    @SuppressWarnings("unchecked")
+    private void materializeArguments() {
+        if (mLiveArgumentsCodec == null) return;
+        if (!mOwnsArguments) {
+            mArguments = mArguments != null ? new Bundle(mArguments) : new Bundle();
+            mOwnsArguments = true;
+        }
+        mLiveArgumentsCodec.write(mLiveArguments, mArguments);
+    }
+
+    /**
+     * Finds the closest vragment containing this vragment.
+     *
+     * @return parent vragment or null, if this vragment is not nested
+     */
+    @Nullable
+    VragmentDelegate findParentVragment() {
+        ViewParent parent = mView.getParent();
+        while (parent != null && !(parent instanceof View && of((View) parent) != null)) {
+            parent = parent.getParent();
+        }
+        return parent != null ? of((View) parent) : null;
+    }
+
+    /**
+     * Returns the lifecycle state this vragment may reach at most: that of its parent vragment,
+     * or that of the VragmentActivity if not nested.
+     *
+     * @return
+     */
+    @NonNull
+    Lifecycle.State getHostLifecycleState() {
+        VragmentDelegate parent = findParentVragment();
+        if (parent != null) return parent.getLifecycle().getCurrentState();
+        if (getContext() instanceof VragmentActivity) {
+            return ((VragmentActivity) getContext()).getVragmentsLifecycleState();
+        }
+        return Lifecycle.State.CREATED;
+    }
+
+    /**
+     * Checks whether this vragment is on top of its container and shown; its scheduled chunks
+     * then run first.
+     *
+     * @return
+     */
+    boolean isShownOnTop() {
+        if (!mView.isShown()) return false;
+        return mOwnerManager == null || mOwnerManager.peekVragment(mContainerId) == this;
+    }
+
+    /**
+     * Sets whether enough of this vragment is visible to be resumed; used by
+     * {@link VragmentVisibilityTracker}.
+     *
+     * @param visibleEnough
+     */
+    void setVisibleEnough(boolean visibleEnough) {
+        if (visibleEnough == mVisibleEnough) return;
+        mVisibleEnough = visibleEnough;
+        if (!visibleEnough) {
+            dispatchPause();
+        } else if (getHostLifecycleState().isAtLeast(Lifecycle.State.RESUMED)) {
+            dispatchResume();
+        }
+    }
+
+    /**
+     * Returns the upper limit for the lifecycle of this vragment, including the limits imposed
+     * by its stack, if any, and by visibility tracking.
+     *
+     * @return
+     */
+    @NonNull
+    Lifecycle.State getEffectiveMaxLifecycle() {
+        Lifecycle.State max = mMaxLifecycle;
+        // vragments of an inactive stack are capped by it
+        if (mView.getParent() instanceof VragmentStack) {
+            Lifecycle.State stackMax = ((VragmentStack) mView.getParent()).getMaxLifecycle();
+            if (!stackMax.isAtLeast(max)) max = stackMax;
+        }
+        if (!mVisibleEnough && max.isAtLeast(Lifecycle.State.RESUMED)) max = Lifecycle.State.STARTED;
+        return max;
+    }
+
+    /**
+     * Finds the vragments directly nested in this one, that is without those nested further down
+     * in the child vragments.
+     *
+     * @return
+     */
+    List<VragmentDelegate> getChildVragments() {
+        List<VragmentDelegate> result = new ArrayList<>();
+        VragmentManager.collectAttachedVragments(mView, false, result);
+        return result;
+    }
+
+    /**
+     * Moves this vragment to given state one step at a time, so every callback in between is
+     * invoked exactly once. Does nothing if it is in that state already. A destroyed vragment is
+     * only moved down.
+     *
+     * @param state one of {@link #DETACHED}, {@link #ATTACHED}, {@link #STARTED}, {@link #RESUMED}
+     */
+    void moveToState(int state) {
+        while (mState < state && !mIsDestroyed) {
+            switch (mState) {
+                case DETACHED: performAttach(); break;
+                case ATTACHED: performStart(); break;
+                default: performResume(); break;
+            }
+        }
+        while (mState > state) {
+            switch (mState) {
+                case RESUMED: performPause(); break;
+                case STARTED: performStop(); break;
+                default: performDetach(); break;
+            }
+        }
+    }
+
+    /**
+     * Returns the tracked state of this vragment.
+     *
+     * @return one of {@link #DETACHED}, {@link #ATTACHED}, {@link #STARTED}, {@link #RESUMED}
+     */
+    int getState() {
+        return mState;
+    }
+
+    boolean isDestroyed() {
+        return mIsDestroyed;
+    }
+
+    /**
+     * Starts this vragment and then its children. If the vragment is capped below STARTED
+     * the whole subtree is skipped.
+     */
+    void dispatchStart() {
+        if (mState < ATTACHED || !getEffectiveMaxLifecycle().isAtLeast(Lifecycle.State.STARTED)) return;
+        moveToState(Math.max(mState, STARTED));
+        for (VragmentDelegate child : getChildVragments()) child.dispatchStart();
+    }
+
+    /**
+     * Resumes this vragment and then its children. If the vragment is capped below RESUMED
+     * or not started, the whole subtree is skipped.
+     */
+    void dispatchResume() {
+        if (mState < STARTED || !getEffectiveMaxLifecycle().isAtLeast(Lifecycle.State.RESUMED)) return;
+        moveToState(RESUMED);
+        for (VragmentDelegate child : getChildVragments()) child.dispatchResume();
+    }
+
+    /**
+     * Pauses children and then this vragment. If this vragment is not resumed, none of its
+     * children can be, so the whole subtree is skipped.
+     */
+    void dispatchPause() {
+        if (mState < RESUMED) return;
+        for (VragmentDelegate child : getChildVragments()) child.dispatchPause();
+        moveToState(STARTED);
+    }
+
+    /**
+     * Stops children and then this vragment. If this vragment is not started, none of its
+     * children can be, so the whole subtree is skipped.
+     */
+    void dispatchStop() {
+        if (mState < STARTED) return;
+        for (VragmentDelegate child : getChildVragments()) child.dispatchStop();
+        moveToState(ATTACHED);
+    }
+
+    /**
+     * Destroys children and then this vragment.
+     */
+    void dispatchDestroy() {
+        for (VragmentDelegate child : getChildVragments()) child.dispatchDestroy();
+        performDestroy();
+    }
+
+    private Context getContext() {
+        return mView.getContext();
+    }
+
+    /**
+     * Notifies watchdog of the activity, if any, that given callback begins.
+     *
+     * @param callback
+     * @return the watchdog to notify when the callback ends, or null
+     */
+    private VragmentWatchdog beginCallback(String callback) {
+        if (!(getContext() instanceof VragmentActivity)) return null;
+        VragmentWatchdog watchdog = ((VragmentActivity) getContext()).getWatchdog();
+        if (watchdog != null) watchdog.begin(mView.getClass().getName(), callback);
+        return watchdog;
+    }
+
+    private void submitPendingChunks() {
+        if (mPendingChunks == null) return;
+        mHasScheduledChunks = true;
+        for (VragmentScheduler.Chunk chunk : mPendingChunks) VragmentScheduler.get().schedule(chunk);
+        mPendingChunks = null;
+    }
+
+    private void cancelScheduledChunks() {
+        mPendingChunks = null;
+        if (!mHasScheduledChunks) return;
+        mHasScheduledChunks = false;
+        VragmentScheduler.get().cancel(this);
+    }
+
+    private VragmentResourceCache findResourceCache() {
+        return getContext() instanceof VragmentActivity
+                ? ((VragmentActivity) getContext()).getResourceCache() : null;
+    }
+
+    private VragmentManager findActivityVragmentManager() {
+        return getContext() instanceof VragmentActivity
+                ? ((VragmentActivity) getContext()).getVragmentManager() : null;
+    }
+
+    // The perform methods only act when called in the matching state, and update the state before
+    // invoking the callback, so callbacks causing nested transitions see the new state.
+
+    void performStart() {
+        if (mState != ATTACHED) return;
+        mState = STARTED;
+        onSnapshotChanged();
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_START);
+        try {
+            mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_START);
+            mVragment.onStart();
+            if (mTasks != null) mTasks.onStarted();
+            VragmentManager vragmentManager = findActivityVragmentManager();
+            if (vragmentManager != null) vragmentManager.getResults().onStarted(this);
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performResume() {
+        if (mState != STARTED) return;
+        mState = RESUMED;
+        onSnapshotChanged();
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_RESUME);
+        try {
+            mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_RESUME);
+            mVragment.onResume();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performPause() {
+        if (mState != RESUMED) return;
+        mState = STARTED;
+        onSnapshotChanged();
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_PAUSE);
+        try {
+            mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_PAUSE);
+            mVragment.onPause();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performStop() {
+        if (mState != STARTED) return;
+        mState = ATTACHED;
+        onSnapshotChanged();
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_STOP);
+        try {
+            if (mTasks != null) mTasks.onStopped();
+            mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_STOP);
+            mVragment.onStop();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performDestroy() {
+        if (mIsDestroyed) return;
+        // stop first, if still started, so onStop is not skipped
+        if (mState > ATTACHED) moveToState(ATTACHED);
+        mIsDestroyed = true;
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_DESTROY);
+        try {
+            if (mTasks != null) mTasks.cancelAll();
+            cancelScheduledChunks();
+            mLifecycle.handleLifecycleEvent(Lifecycle.Event.ON_DESTROY);
+            mVragment.onDestroy();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performAttach() {
+        if (mState != DETACHED || mIsDestroyed) return;
+        mState = ATTACHED;
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_ATTACH);
+        try {
+            // lifecycle stays CREATED; it is moved to STARTED by performStart, if host is started
+            submitPendingChunks();
+            mVragment.onAttach();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+
+    void performDetach() {
+        if (mState != ATTACHED) return;
+        mState = DETACHED;
+        VragmentWatchdog watchdog = beginCallback(VragmentWatchdog.ON_DETACH);
+        try {
+            if (mTasks != null) mTasks.cancelAll();
+            cancelScheduledChunks();
+            VragmentManager vragmentManager = findActivityVragmentManager();
+            if (vragmentManager != null) vragmentManager.getResults().removeListeners(this);
+            mVragment.onDetach();
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+    }
+}
@@ -1,18 +1,48 @@
 package org.ridcully.vragments;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Parcel;
+import android.os.SystemClock;
+import androidx.annotation.AnyThread;
 import androidx.annotation.IdRes;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.pm.PackageInfoCompat;
+import androidx.core.util.AtomicFile;
+import androidx.lifecycle.Lifecycle;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  *
@@ -23,48 +53,281 @@ public class VragmentManager {
     private final static String TAG = VragmentManager.class.getSimpleName();
     private final static String VRAGMENTS_KEY = "org.ridcully.vragments.vragmentmanager.vragments";
 
+    private final static String CLASS_NAMES_KEY = "org.ridcully.vragments.vragmentmanager.classnames";
+    private final static String CONTAINER_ID = "containerId";
+    private final static String CLASS_INDEX = "classIndex";
+    private final static String CLASS_NAME = "className";
+    private final static String ARGUMENTS = "arguments";
+    private final static String MARKER = "marker";
+    private final static String CHILDREN = "children";
+    private final static String STACK = "stack";
+    private final static String STACKS_KEY = "org.ridcully.vragments.vragmentmanager.stacks";
+    private final static String STACK_NAMES = "names";
+    private final static String ACTIVE_STACK = "active";
+    /** Header of the persisted navigation file: magic number "VRAG" and format version. */
+    private final static int PERSISTED_MAGIC = 0x56524147;
+    private final static int PERSISTED_VERSION = 1;
+    private final static String PERSISTED_FILE_PREFIX = "vragments-";
+    /** Delay for persisting after last change, so bursts of changes are written only once. */
+    private final static long PERSIST_DELAY_MS = 500;
+    /** Number of recent operations kept for {@link #dump(String, PrintWriter, boolean, boolean)}. */
+    private final static int OP_HISTORY_SIZE = 32;
+
     private VragmentActivity mVragmentActivity;
+    /** Vragment this manager is the child vragment manager of, or null for the activity's manager. */
+    private VragmentDelegate mHost;
     private Set<Integer> mManagedContainerIds = new HashSet<>();
+    /**
+     * Containers whose vragments changed since last onSaveInstanceState. Only for these the saved
+     * vragment infos are rebuilt, all others are taken from mSavedContainers.
+     */
+    private Set<Integer> mDirtyContainerIds = new HashSet<>();
+    private SparseArray<ArrayList<Bundle>> mSavedContainers = new SparseArray<>();
+    /** Vragment infos of all containers, as put into the last saved state; never modified. */
+    private ArrayList<Bundle> mSavedVragmentInfos;
+    /**
+     * Class names of saved vragments. Saved vragment infos only refer to them by index, so every
+     * class name is written only once per saved state. Only ever appended to, so indices stay valid.
+     */
+    private ArrayList<String> mClassNames = new ArrayList<>();
+    private Map<String, Integer> mClassIndices = new HashMap<>();
+    /** Stacks of containers in multi-stack mode, by container id. */
+    private SparseArray<ContainerStacks> mContainerStacks = new SparseArray<>();
+    /** Names and active stack of containers in multi-stack mode, as put into the last saved state. */
+    private Bundle mSavedStacks;
+    /** Factories for lazy containers, and lazy containers already inflated by id. */
+    private SparseArray<ContainerFactory> mContainerFactories = new SparseArray<>();
+    private SparseArray<ViewGroup> mInflatedContainers = new SparseArray<>();
+    /** Results passed between vragments; only used by the activity's manager, created on first use. */
+    private ResultChannel mResults;
+    /** Vragments with live arguments, written again on every save; only kept by the activity's manager. */
+    private final ArrayList<VragmentDelegate> mLiveArgumentVragments = new ArrayList<>();
+    /** Latest snapshot of all stacks; published on main thread, read from any thread. */
+    private volatile VragmentSnapshot mSnapshot = VragmentSnapshot.EMPTY;
+    /** Snapshots of containers by id, reused for next snapshot unless container changed. */
+    private SparseArray<VragmentSnapshot.Container> mSnapshotContainers = new SparseArray<>();
+    private Set<Integer> mSnapshotDirtyIds = new HashSet<>();
+    private boolean mSnapshotScheduled;
+    /**
+     * Snapshot listeners were last notified of; main thread only. Kept apart from mSnapshot, as
+     * that is also updated by building snapshots on demand, e.g. by getSnapshot().
+     */
+    private VragmentSnapshot mPublishedSnapshot = VragmentSnapshot.EMPTY;
+    private final List<SnapshotListener> mSnapshotListeners = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mPublishSnapshot = new Runnable() {
+        @Override
+        public void run() {
+            mSnapshotScheduled = false;
+            publishSnapshot();
+        }
+    };
+    /** Recent operations as ring buffer, for dumping; parallel arrays to avoid allocations. */
+    private final String[] mOpNames = new String[OP_HISTORY_SIZE];
+    private final int[] mOpContainerIds = new int[OP_HISTORY_SIZE];
+    private final long[] mOpDurationsNanos = new long[OP_HISTORY_SIZE];
+    private final long[] mOpUptimes = new long[OP_HISTORY_SIZE];
+    private int mOpCount;
+    /** File the navigation is persisted to; null unless persistent. */
+    private AtomicFile mPersistedFile;
+    private boolean mPersistPending;
+    /** Identifies app and OS build of persisted files; computed once, as an update restarts the process. */
+    private String mPersistedFingerprint;
+    private final Runnable mPersist = new Runnable() {
+        @Override
+        public void run() {
+            persist();
+        }
+    };
+    /** Writes persisted files in order of changes; shared by all managers. */
+    private static ExecutorService sPersistExecutor;
+    /** Set while restoring, so vragments only get their content once all are restored. */
+    private boolean mRestoring;
+    /** Queue for operations from any thread; created on first use. */
+    private VragmentCommandQueue mCommandQueue;
+
+    /**
+     * Creates a container on first use.
+     *
+     * @see #registerContainerFactory(int, ContainerFactory)
+     */
+    public interface ContainerFactory {
+
+        /**
+         * Creates the container and adds it to the view hierarchy.
+         *
+         * @param containerId
+         * @return the container
+         */
+        @NonNull
+        ViewGroup createContainer(@IdRes int containerId);
+    }
+
+    /**
+     * Receives results set via {@link #setResult(String, Bundle)}.
+     *
+     * @see #setResultListener(String, VragmentView, ResultListener)
+     */
+    public interface ResultListener {
+
+        /**
+         * Called on the main thread, when the receiving vragment is at least started.
+         *
+         * @param requestKey
+         * @param result
+         */
+        void onResult(@NonNull String requestKey, @NonNull Bundle result);
+    }
+
+    /**
+     * Notified with a new snapshot, whenever stacks or lifecycle states of vragments change.
+     *
+     * @see #addSnapshotListener(SnapshotListener)
+     */
+    public interface SnapshotListener {
+
+        /**
+         * Called on the main thread; changes happening in the same message are reported at once.
+         *
+         * @param snapshot
+         */
+        void onSnapshot(@NonNull VragmentSnapshot snapshot);
+    }
+
+    /**
+     * Named stacks of a container in multi-stack mode.
+     */
+    private static class ContainerStacks {
+        final Map<String, VragmentStack> stacks = new LinkedHashMap<>();
+        VragmentStack active;
+    }
 
     VragmentManager(VragmentActivity vragmentActivity) {
+        this(vragmentActivity, null);
+    }
+
+    VragmentManager(VragmentActivity vragmentActivity, VragmentDelegate host) {
         mVragmentActivity = vragmentActivity;
+        mHost = host;
     }
 
+    /**
+     * Saves stacks of all managed containers. As Android calls this on every onStop, only
+     * containers changed since the last call are saved again, unchanged ones reuse their infos.
+     *
+     * @param outState
+     */
     void onSaveInstanceState(Bundle outState) {
-        ArrayList<Bundle> vragmentInfos = new ArrayList<>();
-        for (int containerId : mManagedContainerIds) {
-            for (Vragment vragment : getVragments(containerId)) {
-                Bundle vragmentInfo = new Bundle();
-                vragmentInfo.putInt("containerId", containerId);
-                vragmentInfo.putString("className", vragment.getClass().getCanonicalName());
-                vragmentInfo.putBundle("arguments", vragment.getArguments());
-                vragmentInfos.add(vragmentInfo);
+        if (mHost == null) refreshLiveArguments();
+        if (mSavedVragmentInfos == null || !mDirtyContainerIds.isEmpty()) {
+            compactClassNames();
+            for (int containerId : mDirtyContainerIds) {
+                mSavedContainers.put(containerId, buildVragmentInfos(containerId));
             }
+            mDirtyContainerIds.clear();
+            ArrayList<Bundle> vragmentInfos = new ArrayList<>();
+            for (int containerId : mManagedContainerIds) {
+                ArrayList<Bundle> containerInfos = mSavedContainers.get(containerId);
+                if (containerInfos != null) vragmentInfos.addAll(containerInfos);
+            }
+            mSavedVragmentInfos = vragmentInfos;
+            mSavedStacks = buildStacksInfo();
         }
-        outState.putParcelableArrayList(VRAGMENTS_KEY, vragmentInfos);
+        outState.putParcelableArrayList(VRAGMENTS_KEY, mSavedVragmentInfos);
+        // copied, as the table keeps growing after this state was saved
+        outState.putStringArrayList(CLASS_NAMES_KEY, new ArrayList<>(mClassNames));
+        if (mSavedStacks != null) outState.putBundle(STACKS_KEY, mSavedStacks);
+        if (mResults != null) mResults.onSaveInstanceState(outState);
     }
 
     public void onRestoreInstanceState(Bundle savedInstanceState) {
         if (savedInstanceState == null) return;
+        restore(savedInstanceState, false);
+    }
+
+    /**
+     * Restores vragments from given state.
+     *
+     * @param savedInstanceState
+     * @param dehydrate whether to only build top-most vragments of active stacks, and placeholders
+     *            for all others
+     */
+    private void restore(Bundle savedInstanceState, boolean dehydrate) {
+        long start = System.nanoTime();
+        mRestoring = true;
+        try {
+            restoreVragments(savedInstanceState, dehydrate);
+        } finally {
+            mRestoring = false;
+        }
+        // only now the top-most vragments are known, so only they get their content
+        for (int containerId : new ArrayList<>(mManagedContainerIds)) ensureTopContent(containerId);
+        recordOp("restore", View.NO_ID, start);
+    }
+
+    private void restoreVragments(Bundle savedInstanceState, boolean dehydrate) {
+        if (mHost == null) getResults().onRestoreInstanceState(savedInstanceState);
         mManagedContainerIds.clear();
         ArrayList<Bundle> vragmentInfos = savedInstanceState.getParcelableArrayList(VRAGMENTS_KEY);
         if (vragmentInfos == null) return;
+        ArrayList<String> classNames = savedInstanceState.getStringArrayList(CLASS_NAMES_KEY);
+        if (classNames != null) {
+            mClassNames = new ArrayList<>(classNames);
+            mClassIndices.clear();
+            for (int i = 0; i < mClassNames.size(); i++) mClassIndices.put(mClassNames.get(i), i);
+        }
         // clear all containers in savedInstanceState first, to avoid duplication of vragments
         for (Bundle vragmentInfo : vragmentInfos) {
-            int containerId = vragmentInfo.getInt("containerId");
+            int containerId = vragmentInfo.getInt(CONTAINER_ID);
             // clear() adds container to managed containers, so we can check if containerId
             // is already managed to avoid calling clear multiple times for same container.
             if (!mManagedContainerIds.contains(containerId)) {
                 clear(containerId);
             }
         }
-        for (Bundle vragmentInfo : vragmentInfos) {
-            rebuildVragment(vragmentInfo.getInt("containerId"),
-                    vragmentInfo.getString("className"),
-                    vragmentInfo.getBundle("arguments"));
+        restoreStacks(savedInstanceState.getBundle(STACKS_KEY));
+        // infos are ordered bottom-most first, so the last info of each stack is its top-most
+        Map<String, Integer> topIndices = new HashMap<>();
+        for (int i = 0; i < vragmentInfos.size(); i++) {
+            Bundle vragmentInfo = vragmentInfos.get(i);
+            topIndices.put(vragmentInfo.getInt(CONTAINER_ID) + "/" + vragmentInfo.getString(STACK), i);
+        }
+        for (int i = 0; i < vragmentInfos.size(); i++) {
+            Bundle vragmentInfo = vragmentInfos.get(i);
+            int containerId = vragmentInfo.getInt(CONTAINER_ID);
+            String stackName = vragmentInfo.getString(STACK);
+            String className = vragmentInfo.containsKey(CLASS_INDEX)
+                    ? mClassNames.get(vragmentInfo.getInt(CLASS_INDEX))
+                    : vragmentInfo.getString(CLASS_NAME);
+            ContainerStacks stacks = mContainerStacks.get(containerId);
+            boolean shown = topIndices.get(containerId + "/" + stackName) == i
+                    && (stacks == null || stacks.active.getName().equals(stackName));
+            VragmentDelegate vragment = rebuildVragment(containerId,
+                    stackName,
+                    className,
+                    vragmentInfo.getBundle(ARGUMENTS),
+                    vragmentInfo.getString(MARKER),
+                    vragmentInfo.getBundle(CHILDREN),
+                    dehydrate && !shown,
+                    shown);
+            if (vragment == null) continue;
+            // restored info is still valid for this vragment, saving it again costs nothing
+            if (classNames != null) vragment.setSavedInfo(vragmentInfo);
         }
     }
 
+    /**
+     * Returns queue for operations on this manager, which may be used from any thread. Queued
+     * operations are applied on the main thread once per frame.
+     *
+     * @return the command queue
+     */
+    @AnyThread
+    public synchronized VragmentCommandQueue getCommandQueue() {
+        if (mCommandQueue == null) mCommandQueue = new VragmentCommandQueue(this, mVragmentActivity);
+        return mCommandQueue;
+    }
+
     /**
      * Adds given vragment to the ViewGroup identified by containerId.
      *
@@ -72,7 +335,7 @@ public class VragmentManager {
      * @param vragment
      * @return VragmentManager for concatenating further operations
      */
-    public VragmentManager push(@IdRes int containerId, Vragment vragment) {
+    public VragmentManager push(@IdRes int containerId, VragmentView vragment) {
         push(containerId, vragment, null);
         return this;
     }
@@ -86,10 +349,55 @@ public class VragmentManager {
      *            For example it can be used to coordinate state of different containers, etc.
      * @return VragmentManager for concatenating further operations
      */
-    public VragmentManager push(@IdRes int containerId, Vragment vragment, String marker) {
-        ViewGroup container = findContainer(containerId);
-        vragment.setMarker(marker);
-        container.addView(vragment);
+    public VragmentManager push(@IdRes int containerId, VragmentView vragment, String marker) {
+        long start = System.nanoTime();
+        ViewGroup container = findStack(containerId);
+        VragmentDelegate delegate = VragmentDelegate.of(vragment);
+        delegate.setMarker(marker);
+        delegate.setOwner(this, containerId);
+        delegate.setSavedInfo(null);
+        // pushed vragment is the new top, so it gets its content before it gets attached
+        delegate.ensureContent();
+        container.addView(delegate.getView());
+        markDirty(containerId);
+        recordOp("push", containerId, start);
+        return this;
+    }
+
+    /**
+     * Adds given vragment to the ViewGroup identified by containerId, passing given arguments as
+     * they are. The vragment gets them via {@link VragmentView#getArguments(ArgsCodec)}.
+     * The arguments are only written into a bundle by given codec, if actually needed, e.g. when
+     * the activity saves its state.
+     *
+     * @param containerId
+     * @param vragment
+     * @param arguments live arguments for the vragment
+     * @param codec codec to write the arguments into a bundle, if necessary
+     * @return VragmentManager for concatenating further operations
+     */
+    public <T> VragmentManager push(@IdRes int containerId, VragmentView vragment, T arguments, ArgsCodec<T> codec) {
+        return push(containerId, vragment, null, arguments, codec);
+    }
+
+    /**
+     * Adds given vragment to the ViewGroup identified by containerId, passing given arguments as
+     * they are. The vragment gets them via {@link VragmentView#getArguments(ArgsCodec)}.
+     * The arguments are only written into a bundle by given codec, if actually needed, e.g. when
+     * the activity saves its state.
+     *
+     * @param containerId
+     * @param vragment
+     * @param marker An optional marker that can be used to identify the vragment for further usage.
+     * @param arguments live arguments for the vragment
+     * @param codec codec to write the arguments into a bundle, if necessary
+     * @return VragmentManager for concatenating further operations
+     */
+    public <T> VragmentManager push(@IdRes int containerId, VragmentView vragment, String marker, T arguments, ArgsCodec<T> codec) {
+        VragmentDelegate delegate = VragmentDelegate.of(vragment);
+        delegate.setLiveArguments(arguments, codec);
+        push(containerId, vragment, marker);
+        trackLiveArguments(delegate);
         return this;
     }
 
@@ -100,9 +408,13 @@ public class VragmentManager {
      * @return VragmentManager for concatinating further operations
      */
     public VragmentManager pop(@IdRes int containerId) {
-        ViewGroup container = findContainer(containerId);
+        long start = System.nanoTime();
+        if (!isInflated(containerId)) return this;
+        ViewGroup container = findStack(containerId);
         if (container.getChildCount() > 0) {
             container.removeViewAt(container.getChildCount() - 1);
+            markDirty(containerId);
+            recordOp("pop", containerId, start);
         }
         return this;
     }
@@ -116,14 +428,20 @@ public class VragmentManager {
      * @return VragmentManager for concatenating further operations
      */
     public VragmentManager popToMarker(@IdRes int containerId, String marker) {
-        ViewGroup container = findContainer(containerId);
-        for (int pos = container.getChildCount() - 1; pos >= 0; pos--) {
-            View view = container.getChildAt(pos);
-            if (view instanceof Vragment && stringsEqual(marker, ((Vragment)view).getMarker())) {
+        long start = System.nanoTime();
+        if (!isInflated(containerId)) return this;
+        ViewGroup container = findStack(containerId);
+        int count = container.getChildCount();
+        for (int pos = count - 1; pos >= 0; pos--) {
+            VragmentDelegate vragment = VragmentDelegate.of(container.getChildAt(pos));
+            if (vragment != null && stringsEqual(marker, vragment.getMarker())) {
                 break;
             }
             container.removeViewAt(pos);
         }
+        // only once all are removed, so only the vragment becoming top gets its content
+        if (container.getChildCount() < count) markDirty(containerId);
+        recordOp("popToMarker", containerId, start);
         return this;
     }
 
@@ -134,10 +452,14 @@ public class VragmentManager {
      * @return VragmentManager for concatinating further operations
      */
     public VragmentManager popAll(@IdRes int containerId) {
-        ViewGroup container = findContainer(containerId);
+        long start = System.nanoTime();
+        if (!isInflated(containerId)) return this;
+        ViewGroup container = findStack(containerId);
         for (int pos = container.getChildCount() - 1; pos >= 0; pos--) {
             container.removeViewAt(pos);
         }
+        markDirty(containerId);
+        recordOp("popAll", containerId, start);
         return this;
     }
 
@@ -160,7 +482,7 @@ public class VragmentManager {
      * @param vragment
      * @return VragmentManager for concatinating further operations
      */
-    public VragmentManager set(@IdRes int containerId, Vragment vragment) {
+    public VragmentManager set(@IdRes int containerId, VragmentView vragment) {
         return set(containerId, vragment, null);
     }
 
@@ -173,30 +495,209 @@ public class VragmentManager {
      * @param marker
      * @return VragmentManager for concatenating further operations
      */
-    public VragmentManager set(@IdRes int containerId, Vragment vragment, String marker) {
+    public VragmentManager set(@IdRes int containerId, VragmentView vragment, String marker) {
         clear(containerId);
         push(containerId, vragment, marker);
         return this;
     }
 
+    /**
+     * Sets given vragment in ViewGroup identified by given containerId, removing all other vragments
+     * before. This is the same as concatinating clear(containerId) and
+     * push(containerId, vragment, marker, arguments, codec).
+     *
+     * @param containerId
+     * @param vragment
+     * @param marker
+     * @param arguments live arguments for the vragment
+     * @param codec codec to write the arguments into a bundle, if necessary
+     * @return VragmentManager for concatenating further operations
+     */
+    public <T> VragmentManager set(@IdRes int containerId, VragmentView vragment, String marker, T arguments, ArgsCodec<T> codec) {
+        clear(containerId);
+        push(containerId, vragment, marker, arguments, codec);
+        return this;
+    }
+
+    /**
+     * Sets the stack of ViewGroup identified by containerId to vragments described by given specs,
+     * bottom-most first. Vragments at the bottom of the current stack matching their specs are kept
+     * as they are, only the vragments above them are replaced. So setting the stack it already
+     * has, does not touch the container at all.
+     *
+     * @param containerId
+     * @param specs
+     * @return VragmentManager for concatenating further operations
+     * @throws IllegalArgumentException if a vragment cannot be created from its spec
+     */
+    public VragmentManager setStack(@IdRes int containerId, @NonNull List<VragmentSpec> specs) {
+        long start = System.nanoTime();
+        ViewGroup container = findStack(containerId);
+        int count = container.getChildCount();
+        int keep = 0;
+        while (keep < count && keep < specs.size()) {
+            VragmentDelegate child = VragmentDelegate.of(container.getChildAt(keep));
+            if (child == null || !specs.get(keep).matches(child)) break;
+            keep++;
+        }
+        if (keep == count && keep == specs.size()) return this;
+        // create all vragments first, so the stack stays unchanged if one fails
+        List<VragmentDelegate> added = new ArrayList<>(specs.size() - keep);
+        for (int i = keep; i < specs.size(); i++) {
+            VragmentSpec spec = specs.get(i);
+            VragmentDelegate vragment;
+            try {
+                vragment = VragmentDelegate.of((VragmentView) instantiate(spec.getVragmentClass().getName(), spec.getArguments()));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot create " + spec.getVragmentClass().getName(), e);
+            }
+            vragment.setMarker(spec.getMarker());
+            vragment.setOwner(this, containerId);
+            added.add(vragment);
+        }
+        if (keep < count) container.removeViews(keep, count - keep);
+        // the last one is the new top, so it gets its content before it gets attached
+        if (!added.isEmpty()) added.get(added.size() - 1).ensureContent();
+        for (VragmentDelegate vragment : added) container.addView(vragment.getView());
+        markDirty(containerId);
+        recordOp("setStack", containerId, start);
+        return this;
+    }
+
     /**
      * Returns top-most Vragment of ViewGroup identified by given container, without removing it.
+     * Lazy containers are not inflated by this. Like findViewById, the result is typed as
+     * needed by the caller, e.g. Vragment or LinearVragment.
      * @param containerId
      * @return Topmost vragment or null if ViewGroup had no children
      */
-    public Vragment peek(@IdRes int containerId) {
-        ViewGroup container = findContainer(containerId);
-        if (container.getChildCount() > 0) {
-            return (Vragment)container.getChildAt(container.getChildCount() - 1);
-        }
-        return null;
+    @SuppressWarnings("unchecked")
+    public <V extends VragmentView> V peek(@IdRes int containerId) {
+        VragmentDelegate top = peekVragment(containerId);
+        return top != null ? (V) top.getVragment() : null;
     }
 
+    /**
+     * Checks if ViewGroup identified by given container has no vragments.
+     * Lazy containers are not inflated by this.
+     * @param containerId
+     * @return true if container has no vragments or is not inflated yet
+     */
     public boolean isEmpty(@IdRes int containerId) {
-        ViewGroup container = findContainer(containerId);
+        if (!isInflated(containerId)) return true;
+        ViewGroup container = findStack(containerId);
         return container.getChildCount() == 0;
     }
 
+    /**
+     * Registers a factory for a container that should only be created once something is pushed
+     * or set to it. Until then, {@link #peek(int)} and {@link #isEmpty(int)} answer without
+     * creating it and popping from it does nothing.
+     *
+     * Containers declared as {@link ViewStub} in the layout do not need a factory, they are
+     * inflated lazily in the same way.
+     *
+     * @param containerId id used to identify the container in calls to this manager
+     * @param factory
+     * @return VragmentManager for concatenating further operations
+     */
+    public VragmentManager registerContainerFactory(@IdRes int containerId, @NonNull ContainerFactory factory) {
+        mContainerFactories.put(containerId, factory);
+        return this;
+    }
+
+    /**
+     * Switches container identified by containerId to the stack with given name, creating it if
+     * necessary. The first call puts the container into multi-stack mode, and the vragments
+     * already in it become the first stack.
+     *
+     * The previously active stack is hidden and capped to {@link Lifecycle.State#CREATED}, but
+     * neither destroyed nor removed, so switching back to it later is cheap. All operations
+     * on the container, like push and pop, work on the active stack. All stacks are saved and
+     * restored.
+     *
+     * @param containerId
+     * @param stackName
+     * @return VragmentManager for concatenating further operations
+     */
+    public VragmentManager switchStack(@IdRes int containerId, @NonNull String stackName) {
+        long start = System.nanoTime();
+        ViewGroup container = findContainer(containerId);
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        if (stacks == null) {
+            stacks = new ContainerStacks();
+            mContainerStacks.put(containerId, stacks);
+            VragmentStack stack = new VragmentStack(mVragmentActivity, stackName);
+            // move existing vragments into the first stack; they stay attached as far as their
+            // lifecycle is concerned, so running tasks and result listeners are kept
+            mVragmentActivity.setMovingVragments(true);
+            try {
+                while (container.getChildCount() > 0) {
+                    View child = container.getChildAt(0);
+                    container.removeViewAt(0);
+                    VragmentDelegate vragment = VragmentDelegate.of(child);
+                    if (vragment != null) vragment.setSavedInfo(null);
+                    stack.addView(child);
+                }
+                container.addView(stack, new ViewGroup.LayoutParams(
+                        ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+            } finally {
+                mVragmentActivity.setMovingVragments(false);
+            }
+            stacks.stacks.put(stackName, stack);
+            stacks.active = stack;
+            markDirty(containerId);
+            recordOp("switchStack", containerId, start);
+            return this;
+        }
+        VragmentStack target = obtainStack(containerId, stackName);
+        if (target == stacks.active) return this;
+        VragmentStack previous = stacks.active;
+        previous.setMaxLifecycle(Lifecycle.State.CREATED);
+        previous.setVisibility(View.GONE);
+        target.setVisibility(View.VISIBLE);
+        stacks.active = target;
+        target.setMaxLifecycle(Lifecycle.State.RESUMED);
+        markDirty(containerId);
+        recordOp("switchStack", containerId, start);
+        return this;
+    }
+
+    /**
+     * Returns name of active stack of container identified by containerId.
+     *
+     * @param containerId
+     * @return name of active stack, or null if container is not in multi-stack mode
+     */
+    public String getActiveStack(@IdRes int containerId) {
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        return stacks != null ? stacks.active.getName() : null;
+    }
+
+    /**
+     * Removes the stack with given name and all its vragments from container identified by
+     * containerId.
+     *
+     * @param containerId
+     * @param stackName
+     * @return VragmentManager for concatenating further operations
+     * @throws IllegalArgumentException if the stack is the active one
+     */
+    public VragmentManager removeStack(@IdRes int containerId, @NonNull String stackName) {
+        long start = System.nanoTime();
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        VragmentStack stack = stacks != null ? stacks.stacks.get(stackName) : null;
+        if (stack == null) return this;
+        if (stack == stacks.active) {
+            throw new IllegalArgumentException("Cannot remove active stack " + stackName + ", switch to another one first");
+        }
+        stacks.stacks.remove(stackName);
+        findContainer(containerId).removeView(stack);
+        markDirty(containerId);
+        recordOp("removeStack", containerId, start);
+        return this;
+    }
+
     /**
      * Invokes onBackPressed() of top-most vragment of every specified container (in specified order).
      * If it returns false, it gets popped from its container.
@@ -208,8 +709,8 @@ public class VragmentManager {
         boolean handled = false;
         if (containerIds != null) {
             for (int id : containerIds) {
-                Vragment vragment = peek(id);
-                if (vragment != null && !vragment.onBackPressed()) {
+                VragmentDelegate vragment = peekVragment(id);
+                if (vragment != null && !vragment.getVragment().onBackPressed()) {
                     handled = true;
                     pop(id);
                 }
@@ -218,24 +719,218 @@ public class VragmentManager {
         return handled;
     }
 
+    /**
+     * Creates content of the vragments directly beneath the top-most ones of given containers,
+     * so popping the top-most vragment only reveals the one beneath, which is already laid out.
+     * Meant to be called when a back gesture starts; lazy containers are not inflated by this.
+     *
+     * @param containerIds
+     * @return VragmentManager for concatenating further operations
+     */
+    public VragmentManager prepareBack(@IdRes int... containerIds) {
+        for (int containerId : containerIds) {
+            if (!isInflated(containerId)) continue;
+            ViewGroup stack = findStack(containerId);
+            int count = stack.getChildCount();
+            VragmentDelegate beneath = count >= 2 ? VragmentDelegate.of(stack.getChildAt(count - 2)) : null;
+            if (beneath != null && beneath.getView() instanceof DehydratedVragment) {
+                beneath = rehydrate(containerId, (DehydratedVragment) beneath.getView());
+            }
+            if (beneath != null) beneath.ensureContent();
+        }
+        return this;
+    }
+
+    /**
+     * Sets result for given request key, e.g. the marker of the receiving vragment. The result is
+     * delivered to the listener for the key as soon as its vragment is at least started. Until
+     * then only the latest result is kept, also across saved instance state.
+     *
+     * @param requestKey
+     * @param result
+     */
+    @MainThread
+    public void setResult(@NonNull String requestKey, @NonNull Bundle result) {
+        getResults().setResult(requestKey, result);
+    }
+
+    /**
+     * Drops the pending result for given request key, if any.
+     *
+     * @param requestKey
+     */
+    @MainThread
+    public void clearResult(@NonNull String requestKey) {
+        getResults().clearResult(requestKey);
+    }
+
+    /**
+     * Sets listener for results of given request key, replacing any previous one. The listener is
+     * removed automatically when the receiver is detached, so it is best set in
+     * {@link VragmentView#onAttach()}.
+     *
+     * @param requestKey
+     * @param receiver vragment whose lifecycle decides when results are delivered
+     * @param listener the listener, or null to remove the current one
+     */
+    @MainThread
+    public void setResultListener(@NonNull String requestKey, @NonNull VragmentView receiver, @Nullable ResultListener listener) {
+        getResults().setResultListener(requestKey, VragmentDelegate.of(receiver), listener);
+    }
+
+    /**
+     * Returns snapshot of the stacks of all containers. May be called from any thread; off the
+     * main thread, changes of the current message may not be contained yet.
+     *
+     * @return the snapshot
+     */
+    @AnyThread
+    @NonNull
+    public VragmentSnapshot getSnapshot() {
+        return Looper.myLooper() == Looper.getMainLooper() ? buildSnapshot() : mSnapshot;
+    }
+
+    /**
+     * Adds listener, which gets notified with a new snapshot on every change. May be called from
+     * any thread.
+     *
+     * @param listener
+     */
+    @AnyThread
+    public void addSnapshotListener(@NonNull SnapshotListener listener) {
+        mSnapshotListeners.add(listener);
+    }
+
+    @AnyThread
+    public void removeSnapshotListener(@NonNull SnapshotListener listener) {
+        mSnapshotListeners.remove(listener);
+    }
+
+    /**
+     * Sets whether the stacks of all containers are persisted to a file in app-private storage,
+     * so they can be restored via {@link #restorePersisted()} after the process was killed and
+     * the saved instance state is lost. Changes are written in background, at most once per burst
+     * of changes. Only the top-most vragments are built on restore, all others once shown.
+     *
+     * Only the activity's vragment manager can be persistent; child vragment managers are
+     * persisted as part of it.
+     *
+     * @param persistent
+     * @throws IllegalStateException if this is a child vragment manager
+     */
+    public void setPersistent(boolean persistent) {
+        if (mHost != null) {
+            throw new IllegalStateException("Only the activity's vragment manager can be persistent");
+        }
+        if (persistent == (mPersistedFile != null)) return;
+        if (persistent) {
+            mPersistedFile = new AtomicFile(new File(mVragmentActivity.getNoBackupFilesDir(),
+                    PERSISTED_FILE_PREFIX + mVragmentActivity.getClass().getName()));
+            schedulePersist();
+        } else {
+            deletePersisted();
+            mPersistedFile = null;
+        }
+    }
+
+    /**
+     * Restores stacks of all containers from the persisted file, e.g. in onCreate of the activity,
+     * if savedInstanceState is null. The file is discarded, if it was written by another version
+     * of the app or OS, or cannot be restored.
+     *
+     * @return true if stacks were restored, false if there was nothing to restore
+     * @see #setPersistent(boolean)
+     */
+    public boolean restorePersisted() {
+        if (mPersistedFile == null) return false;
+        Bundle state = readPersisted();
+        if (state == null) return false;
+        try {
+            restore(state, true);
+        } catch (RuntimeException e) {
+            // e.g. vragment classes renamed or state not matching their current layouts; discard the
+            // file, as it would fail on every start otherwise
+            Log.w(TAG, "Cannot restore persisted vragments", e);
+            for (int containerId : new ArrayList<>(mManagedContainerIds)) clear(containerId);
+            deletePersisted();
+            return false;
+        }
+        return true;
+    }
+
 
     // ---------------------------------------------------------------------------- Internal methods
 
 
+    /**
+     * Returns result channel; results are shared by all managers of an activity, so they are
+     * kept by the activity's manager.
+     *
+     * @return
+     */
+    ResultChannel getResults() {
+        if (mHost != null) return mVragmentActivity.getVragmentManager().getResults();
+        if (mResults == null) mResults = new ResultChannel();
+        return mResults;
+    }
+
+
+    /**
+     * Checks whether the activity, or the vragment hosting this manager, got destroyed, so
+     * operations must no longer be applied.
+     *
+     * @return
+     */
+    boolean isHostDestroyed() {
+        return mVragmentActivity.isDestroyed() || (mHost != null && mHost.isDestroyed());
+    }
+
+    /**
+     * Registers given vragment, which got live arguments, for having them written again on every
+     * save. Tracked by the activity's manager, as infos of nested vragments are cached inside
+     * the infos of their parents and not rebuilt on save.
+     *
+     * @param vragment
+     */
+    private void trackLiveArguments(VragmentDelegate vragment) {
+        if (mHost != null) {
+            mVragmentActivity.getVragmentManager().trackLiveArguments(vragment);
+            return;
+        }
+        if (!mLiveArgumentVragments.contains(vragment)) mLiveArgumentVragments.add(vragment);
+    }
+
+    /**
+     * Writes current values of live arguments into the argument bundles of tracked vragments.
+     * The bundles are written in place, so cached infos referencing them stay valid.
+     * Vragments removed from their containers are not tracked any longer.
+     */
+    private void refreshLiveArguments() {
+        for (int i = mLiveArgumentVragments.size() - 1; i >= 0; i--) {
+            VragmentDelegate vragment = mLiveArgumentVragments.get(i);
+            if (vragment.getView().getParent() == null || !vragment.hasLiveArguments()) {
+                mLiveArgumentVragments.remove(i);
+            } else {
+                vragment.refreshArguments();
+            }
+        }
+    }
+
     /**
      * Finds all Vragments attached to window of mVragmentActivity.
      *
      * @param collectSubVragments
      * @return
      */
-    List<Vragment> getAttachedVragments(boolean collectSubVragments) {
-        List<Vragment> result = new ArrayList<>();
+    List<VragmentDelegate> getAttachedVragments(boolean collectSubVragments) {
+        List<VragmentDelegate> result = new ArrayList<>();
         View root = mVragmentActivity.getWindow().getDecorView().getRootView();
         if (root != null && root instanceof ViewGroup) {
-            if (root instanceof Vragment && ((Vragment)root).isAttachedToWindow()) {
-                result.add((Vragment) root);
+            VragmentDelegate vragment = VragmentDelegate.of(root);
+            if (vragment != null && vragment.isAttachedToWindow()) {
+                result.add(vragment);
             }
-            if (collectSubVragments || !(root instanceof Vragment)) {
+            if (collectSubVragments || vragment == null) {
                 collectAttachedVragments((ViewGroup)root, collectSubVragments, result);
             }
         }
@@ -249,16 +944,17 @@ public class VragmentManager {
      * @param collectSubVragments
      * @param result
      */
-    private void collectAttachedVragments(@NonNull ViewGroup parent,
+    static void collectAttachedVragments(@NonNull ViewGroup parent,
                                          boolean collectSubVragments,
-                                         @NonNull List<Vragment> result) {
+                                         @NonNull List<VragmentDelegate> result) {
         for (int i = 0; i < parent.getChildCount(); i++) {
             View child = parent.getChildAt(i);
             if (child instanceof ViewGroup) {
-                if (child instanceof Vragment && ((Vragment) child).isAttachedToWindow()) {
-                    result.add((Vragment) child);
+                VragmentDelegate vragment = VragmentDelegate.of(child);
+                if (vragment != null && vragment.isAttachedToWindow()) {
+                    result.add(vragment);
                 }
-                if (collectSubVragments || !(child instanceof Vragment)) {
+                if (collectSubVragments || vragment == null) {
                     collectAttachedVragments((ViewGroup) child, collectSubVragments, result);
                 }
             }
@@ -266,16 +962,19 @@ public class VragmentManager {
     }
 
     /**
-     * Gets vragments in given container.
+     * Gets vragments in given container (or its active stack in multi-stack mode).
      *
      * @param containerId
      * @return
      */
-    private List<Vragment> getVragments(int containerId) {
-        ViewGroup container = findContainer(containerId);
-        ArrayList<Vragment> vragments = new ArrayList<>();
+    private List<VragmentDelegate> getVragments(int containerId) {
+        return getVragments(findStack(containerId));
+    }
+
+    private List<VragmentDelegate> getVragments(ViewGroup container) {
+        ArrayList<VragmentDelegate> vragments = new ArrayList<>();
         for (int pos = 0; pos < container.getChildCount(); pos++) {
-            vragments.add((Vragment)container.getChildAt(pos));
+            vragments.add(VragmentDelegate.of(container.getChildAt(pos)));
         }
         return vragments;
     }
@@ -284,40 +983,760 @@ public class VragmentManager {
      * Rebuilds vragment of given class name with given arguments in given container.
      *
      * @param containerId
+     * @param stackName name of stack in multi-stack mode, otherwise null
      * @param className
      * @param arguments
+     * @param marker
+     * @param children saved state of child vragments, or null
+     * @param dehydrated whether to only add a placeholder, which is rebuilt once shown
+     * @param shown whether it is the top of an active stack, which gets its content before it
+     *            gets attached
+     * @return the rebuilt vragment or null, if it could not be rebuilt
      */
-    private void rebuildVragment(int containerId, String className, Bundle arguments) {
-        ViewGroup container = findContainer(containerId);
+    private VragmentDelegate rebuildVragment(int containerId, String stackName, String className, Bundle arguments, String marker, Bundle children, boolean dehydrated, boolean shown) {
+        ViewGroup container = stackName != null ? obtainStack(containerId, stackName) : findStack(containerId);
         try {
-            View childView;
-            Class<?> clazz = getClass().getClassLoader().loadClass(className);
-            try {
-                Constructor constructor = clazz.getConstructor(Context.class, Bundle.class);
-                childView = (View) constructor.newInstance(mVragmentActivity, arguments);
-            } catch (Exception e) {
-                Constructor constructor = clazz.getConstructor(Context.class);
-                childView = (View) constructor.newInstance(mVragmentActivity);
+            View childView = dehydrated
+                    ? new DehydratedVragment(mVragmentActivity, className, arguments)
+                    : instantiate(className, arguments);
+            VragmentDelegate vragment = VragmentDelegate.of(childView);
+            if (vragment != null) {
+                vragment.setMarker(marker);
+                vragment.setOwner(this, containerId);
+                if (children != null) vragment.restoreChildState(children);
+                if (shown && !dehydrated) vragment.ensureContent();
             }
             container.addView(childView);
+            markDirty(containerId);
+            return vragment;
         } catch (Exception e) {
             Log.e(TAG, e.getMessage(), e);
+            return null;
         }
     }
 
     /**
-     * Finds container viewgroup by given containerId.
+     * Creates view of given class name with given arguments, preferring a (Context, Bundle)
+     * constructor over a (Context) one.
+     *
+     * @param className
+     * @param arguments
+     * @return the view
+     * @throws Exception if class or constructor is not found, or the constructor throws
+     */
+    private View instantiate(String className, Bundle arguments) throws Exception {
+        View childView;
+        Class<?> clazz = getClass().getClassLoader().loadClass(className);
+        VragmentWatchdog watchdog = mVragmentActivity.getWatchdog();
+        if (watchdog != null) watchdog.begin(className, VragmentWatchdog.CONSTRUCT);
+        try {
+            Constructor constructor = clazz.getConstructor(Context.class, Bundle.class);
+            childView = (View) constructor.newInstance(mVragmentActivity, arguments);
+        } catch (Exception e) {
+            Constructor constructor = clazz.getConstructor(Context.class);
+            childView = (View) constructor.newInstance(mVragmentActivity);
+            // vragments getting live arguments usually only have a context constructor
+            VragmentDelegate vragment = VragmentDelegate.of(childView);
+            if (vragment != null) vragment.setArguments(arguments);
+        } finally {
+            if (watchdog != null) watchdog.end();
+        }
+        return childView;
+    }
+
+    /**
+     * Builds infos of all vragments in given container, as needed to rebuild them after restore.
+     * Infos are cached by the vragments, so each vragment's info is only built once.
+     *
+     * @param containerId
+     * @return
+     */
+    private ArrayList<Bundle> buildVragmentInfos(int containerId) {
+        ArrayList<Bundle> vragmentInfos = new ArrayList<>();
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        if (stacks == null) {
+            buildVragmentInfos(containerId, null, getVragments(containerId), vragmentInfos);
+        } else {
+            for (VragmentStack stack : stacks.stacks.values()) {
+                buildVragmentInfos(containerId, stack.getName(), getVragments(stack), vragmentInfos);
+            }
+        }
+        return vragmentInfos;
+    }
+
+    private void buildVragmentInfos(int containerId, String stackName, List<VragmentDelegate> vragments, ArrayList<Bundle> vragmentInfos) {
+        for (VragmentDelegate vragment : vragments) {
+            Bundle vragmentInfo = vragment.getSavedInfo();
+            if (vragmentInfo == null) {
+                // vragments declared in layout have not been pushed, so they get their owner here
+                vragment.setOwner(this, containerId);
+                vragmentInfo = new Bundle();
+                vragmentInfo.putInt(CONTAINER_ID, containerId);
+                vragmentInfo.putInt(CLASS_INDEX, classIndex(classNameOf(vragment)));
+                vragmentInfo.putBundle(ARGUMENTS, vragment.getArguments());
+                vragmentInfo.putString(MARKER, vragment.getMarker());
+                if (stackName != null) vragmentInfo.putString(STACK, stackName);
+                VragmentManager childVragmentManager = vragment.peekChildVragmentManager();
+                if (vragment.getPendingChildState() != null) {
+                    vragmentInfo.putBundle(CHILDREN, vragment.getPendingChildState());
+                } else if (childVragmentManager != null) {
+                    Bundle children = new Bundle();
+                    childVragmentManager.onSaveInstanceState(children);
+                    vragmentInfo.putBundle(CHILDREN, children);
+                }
+                vragment.setSavedInfo(vragmentInfo);
+            }
+            vragmentInfos.add(vragmentInfo);
+        }
+    }
+
+    /**
+     * Rebuilds mClassNames from the classes of the vragments present, if it holds classes of
+     * vragments no longer present, so saved state does not grow with every class ever pushed.
+     * Infos saved for the vragments are replaced by copies with updated class indices, as earlier
+     * saved states may still hold them, and all containers are saved again.
+     */
+    private void compactClassNames() {
+        List<VragmentDelegate> vragments = new ArrayList<>();
+        for (int containerId : mManagedContainerIds) {
+            ContainerStacks stacks = mContainerStacks.get(containerId);
+            if (stacks == null) {
+                vragments.addAll(getVragments(containerId));
+            } else {
+                for (VragmentStack stack : stacks.stacks.values()) vragments.addAll(getVragments(stack));
+            }
+        }
+        Set<String> present = new HashSet<>();
+        for (VragmentDelegate vragment : vragments) present.add(classNameOf(vragment));
+        if (present.containsAll(mClassNames)) return;
+        mClassNames = new ArrayList<>();
+        mClassIndices.clear();
+        for (VragmentDelegate vragment : vragments) {
+            int index = classIndex(classNameOf(vragment));
+            Bundle vragmentInfo = vragment.getSavedInfo();
+            if (vragmentInfo != null && vragmentInfo.getInt(CLASS_INDEX, -1) != index) {
+                vragmentInfo = new Bundle(vragmentInfo);
+                vragmentInfo.putInt(CLASS_INDEX, index);
+                vragment.setSavedInfo(vragmentInfo);
+            }
+        }
+        mDirtyContainerIds.addAll(mManagedContainerIds);
+    }
+
+    /**
+     * Gets index of given class name in mClassNames, adding it if not contained yet.
+     *
+     * @param className
+     * @return
+     */
+    private int classIndex(String className) {
+        Integer index = mClassIndices.get(className);
+        if (index == null) {
+            index = mClassNames.size();
+            mClassNames.add(className);
+            mClassIndices.put(className, index);
+        }
+        return index;
+    }
+
+    private void schedulePersist() {
+        if (mPersistedFile == null) return;
+        mPersistPending = true;
+        mMainHandler.removeCallbacks(mPersist);
+        mMainHandler.postDelayed(mPersist, PERSIST_DELAY_MS);
+    }
+
+    /**
+     * Persists pending changes right away, e.g. when the activity gets stopped.
+     */
+    void flushPersisted() {
+        if (mPersistPending) persist();
+    }
+
+    /**
+     * Deletes the persisted file, e.g. when the activity is finished, so the next start is a
+     * fresh one.
+     */
+    void deletePersisted() {
+        if (mPersistedFile == null) return;
+        mMainHandler.removeCallbacks(mPersist);
+        mPersistPending = false;
+        final AtomicFile file = mPersistedFile;
+        persistExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    /**
+     * Writes stacks of all containers to the persisted file. The state is collected and flattened
+     * on the main thread, writing happens in background, replacing the file atomically.
+     */
+    private void persist() {
+        mMainHandler.removeCallbacks(mPersist);
+        mPersistPending = false;
+        if (mPersistedFile == null) return;
+        Bundle state = new Bundle();
+        onSaveInstanceState(state);
+        final byte[] data;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(state);
+            data = parcel.marshall();
+        } catch (RuntimeException e) {
+            // e.g. arguments holding binders, which cannot be persisted
+            Log.w(TAG, "Cannot persist vragments", e);
+            return;
+        } finally {
+            parcel.recycle();
+        }
+        final AtomicFile file = mPersistedFile;
+        final String fingerprint = persistedFingerprint();
+        persistExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                writePersisted(file, fingerprint, data);
+            }
+        });
+    }
+
+    private static void writePersisted(AtomicFile file, String fingerprint, byte[] data) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(PERSISTED_MAGIC);
+            out.writeInt(PERSISTED_VERSION);
+            out.writeUTF(fingerprint);
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            if (stream != null) file.failWrite(stream);
+            Log.w(TAG, "Cannot persist vragments", e);
+        }
+    }
+
+    private Bundle readPersisted() {
+        byte[] bytes;
+        try {
+            bytes = mPersistedFile.readFully();
+        } catch (IOException e) {
+            // nothing persisted yet
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != PERSISTED_MAGIC || in.readInt() != PERSISTED_VERSION
+                    || !in.readUTF().equals(persistedFingerprint())) {
+                // parcels are only compatible with the same app and OS build
+                deletePersisted();
+                return null;
+            }
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            Bundle state = parcel.readBundle(mVragmentActivity.getClassLoader());
+            // bundles are unparcelled lazily; do it here, so a stale parcel fails inside this try
+            unparcelFully(state);
+            return state;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot restore persisted vragments", e);
+            deletePersisted();
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Unparcels given value and all bundles, parcelables and collections contained in it.
+     *
+     * @param value
+     */
+    private static void unparcelFully(Object value) {
+        if (value instanceof Bundle) {
+            Bundle bundle = (Bundle) value;
+            for (String key : bundle.keySet()) {
+                unparcelFully(bundle.get(key));
+            }
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                unparcelFully(element);
+            }
+        } else if (value instanceof Iterable) {
+            for (Object element : (Iterable<?>) value) {
+                unparcelFully(element);
+            }
+        } else if (value instanceof SparseArray) {
+            SparseArray<?> array = (SparseArray<?>) value;
+            for (int i = 0; i < array.size(); i++) {
+                unparcelFully(array.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Identifies app and OS build, as persisted parcels can only be read by the same ones.
+     *
+     * @return
+     */
+    private String persistedFingerprint() {
+        if (mPersistedFingerprint == null) {
+            String app;
+            try {
+                PackageInfo info = mVragmentActivity.getPackageManager()
+                        .getPackageInfo(mVragmentActivity.getPackageName(), 0);
+                app = PackageInfoCompat.getLongVersionCode(info) + "|" + info.lastUpdateTime;
+            } catch (PackageManager.NameNotFoundException e) {
+                // cannot happen for the own package; never match, so nothing stale is restored
+                app = String.valueOf(SystemClock.elapsedRealtime());
+            }
+            mPersistedFingerprint = Build.FINGERPRINT + "|" + app;
+        }
+        return mPersistedFingerprint;
+    }
+
+    /**
+     * Returns executor writing and deleting persisted files, one after another.
+     *
+     * @return
+     */
+    static synchronized ExecutorService persistExecutor() {
+        if (sPersistExecutor == null) sPersistExecutor = Executors.newSingleThreadExecutor();
+        return sPersistExecutor;
+    }
+
+    /**
+     * Records given operation in the history of recent operations.
+     *
+     * @param name
+     * @param containerId
+     * @param start start of operation in {@link System#nanoTime()} time base
+     */
+    private void recordOp(String name, int containerId, long start) {
+        int index = mOpCount % OP_HISTORY_SIZE;
+        mOpNames[index] = name;
+        mOpContainerIds[index] = containerId;
+        mOpDurationsNanos[index] = System.nanoTime() - start;
+        mOpUptimes[index] = SystemClock.uptimeMillis();
+        mOpCount++;
+    }
+
+    /**
+     * Prints stacks of all managed containers and recent operations, for
+     * {@link VragmentActivity#dump(String, java.io.FileDescriptor, PrintWriter, String[])}.
+     *
+     * @param prefix
+     * @param writer
+     * @param verbose whether to print approximate saved state sizes
+     * @param compact whether to print only top-most vragments and no operations
+     */
+    void dump(String prefix, PrintWriter writer, boolean verbose, boolean compact) {
+        List<Integer> containerIds = new ArrayList<>(mManagedContainerIds);
+        Collections.sort(containerIds);
+        for (int containerId : containerIds) {
+            writer.print(prefix);
+            writer.print("Container ");
+            writer.print(idName(containerId));
+            if (!isInflated(containerId)) {
+                writer.println(" (not inflated)");
+                continue;
+            }
+            ContainerStacks stacks = mContainerStacks.get(containerId);
+            if (stacks == null) {
+                writer.println();
+                dumpStack(prefix + "  ", getVragments(containerId), writer, verbose, compact);
+                continue;
+            }
+            writer.println();
+            for (VragmentStack stack : stacks.stacks.values()) {
+                writer.print(prefix);
+                writer.print("  Stack ");
+                writer.print(stack.getName());
+                writer.println(stack == stacks.active ? " (active)" : "");
+                dumpStack(prefix + "    ", getVragments(stack), writer, verbose, compact);
+            }
+        }
+        if (compact || mOpCount == 0) return;
+        writer.print(prefix);
+        writer.println("Recent operations:");
+        long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < Math.min(mOpCount, OP_HISTORY_SIZE); i++) {
+            int index = (mOpCount - 1 - i) % OP_HISTORY_SIZE;
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(mOpNames[index]);
+            if (mOpContainerIds[index] != View.NO_ID) {
+                writer.print(' ');
+                writer.print(idName(mOpContainerIds[index]));
+            }
+            writer.print(" took ");
+            writer.print(mOpDurationsNanos[index] / 1000 / 1000f);
+            writer.print("ms, ");
+            writer.print(now - mOpUptimes[index]);
+            writer.println("ms ago");
+        }
+    }
+
+    private void dumpStack(String prefix, List<VragmentDelegate> vragments, PrintWriter writer, boolean verbose, boolean compact) {
+        // top-most first, as that is the one shown
+        for (int i = vragments.size() - 1; i >= 0; i--) {
+            VragmentDelegate vragment = vragments.get(i);
+            writer.print(prefix);
+            writer.print('#');
+            writer.print(i);
+            writer.print(' ');
+            writer.print(classNameOf(vragment));
+            if (vragment.getMarker() != null) {
+                writer.print(" marker=");
+                writer.print(vragment.getMarker());
+            }
+            writer.print(" state=");
+            writer.print(vragment.getLifecycle().getCurrentState());
+            writer.print(vragment.isAttachedToWindow() ? " attached" : " detached");
+            if (vragment.getView() instanceof DehydratedVragment) {
+                writer.print(" dehydrated");
+            } else {
+                writer.print(vragment.hasContent() ? " views=" + countViews(vragment.getView()) : " placeholder");
+            }
+            if (verbose) {
+                writer.print(" saved~");
+                writer.print(savedSize(vragment));
+                writer.print('B');
+            }
+            writer.println();
+            VragmentManager childVragmentManager = vragment.peekChildVragmentManager();
+            if (childVragmentManager != null) {
+                childVragmentManager.dump(prefix + "  ", writer, verbose, compact);
+            }
+            if (compact) break;
+        }
+    }
+
+    private static int countViews(View view) {
+        int count = 1;
+        if (view instanceof ViewGroup) {
+            ViewGroup group = (ViewGroup) view;
+            for (int i = 0; i < group.getChildCount(); i++) count += countViews(group.getChildAt(i));
+        }
+        return count;
+    }
+
+    /**
+     * Returns approximate size of what is saved for given vragment: its cached info including
+     * children, or just its arguments bundle, if no info was built yet. Live arguments are not
+     * written for this, as dumping must not change any vragment.
+     *
+     * @param vragment
+     * @return size in bytes
+     */
+    private static int savedSize(VragmentDelegate vragment) {
+        Bundle saved = vragment.getSavedInfo() != null ? vragment.getSavedInfo() : vragment.peekArguments();
+        if (saved == null) return 0;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeBundle(saved);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private String idName(int id) {
+        try {
+            return mVragmentActivity.getResources().getResourceEntryName(id);
+        } catch (RuntimeException e) {
+            return "0x" + Integer.toHexString(id);
+        }
+    }
+
+    /**
+     * Marks given container as changed, so its vragments are saved again on next
+     * onSaveInstanceState. For child vragment managers, the host vragment is marked too.
+     *
+     * @param containerId
+     */
+    void markDirty(int containerId) {
+        mDirtyContainerIds.add(containerId);
+        if (mHost != null) mHost.onChildVragmentsChanged();
+        if (!mRestoring) {
+            ensureTopContent(containerId);
+            schedulePersist();
+        }
+        invalidateSnapshot(containerId);
+    }
+
+    /**
+     * Marks snapshot of given container as outdated and schedules publishing a new snapshot.
+     * Called on changes of the container's stacks and of the lifecycle state of its vragments.
+     *
+     * @param containerId
+     */
+    void invalidateSnapshot(int containerId) {
+        mSnapshotDirtyIds.add(containerId);
+        if (mHost != null) mHost.onSnapshotChanged();
+        if (!mSnapshotScheduled) {
+            mSnapshotScheduled = true;
+            mMainHandler.post(mPublishSnapshot);
+        }
+    }
+
+    /**
+     * Builds snapshot, rebuilding only containers changed since the last one. Main thread only.
+     *
+     * @return
+     */
+    VragmentSnapshot buildSnapshot() {
+        if (mSnapshotDirtyIds.isEmpty()) return mSnapshot;
+        for (int containerId : mSnapshotDirtyIds) {
+            if (isInflated(containerId)) {
+                mSnapshotContainers.put(containerId, buildContainerSnapshot(containerId));
+            }
+        }
+        mSnapshotDirtyIds.clear();
+        List<VragmentSnapshot.Container> containers = new ArrayList<>(mSnapshotContainers.size());
+        for (int i = 0; i < mSnapshotContainers.size(); i++) containers.add(mSnapshotContainers.valueAt(i));
+        mSnapshot = new VragmentSnapshot(containers);
+        return mSnapshot;
+    }
+
+    private void publishSnapshot() {
+        // snapshots of child managers are built on demand by the parent's snapshot
+        if (mHost != null && mSnapshotListeners.isEmpty()) return;
+        VragmentSnapshot snapshot = buildSnapshot();
+        if (snapshot == mPublishedSnapshot) return;
+        mPublishedSnapshot = snapshot;
+        for (SnapshotListener listener : mSnapshotListeners) listener.onSnapshot(snapshot);
+    }
+
+    private VragmentSnapshot.Container buildContainerSnapshot(int containerId) {
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        if (stacks == null) {
+            return new VragmentSnapshot.Container(containerId, null,
+                    buildEntries(getVragments(containerId)),
+                    Collections.<String, List<VragmentSnapshot.Entry>>emptyMap());
+        }
+        Map<String, List<VragmentSnapshot.Entry>> stackEntries = new LinkedHashMap<>();
+        for (VragmentStack stack : stacks.stacks.values()) {
+            stackEntries.put(stack.getName(), Collections.unmodifiableList(buildEntries(getVragments(stack))));
+        }
+        return new VragmentSnapshot.Container(containerId, stacks.active.getName(),
+                stackEntries.get(stacks.active.getName()), stackEntries);
+    }
+
+    private List<VragmentSnapshot.Entry> buildEntries(List<VragmentDelegate> vragments) {
+        List<VragmentSnapshot.Entry> entries = new ArrayList<>(vragments.size());
+        for (int i = 0; i < vragments.size(); i++) {
+            VragmentDelegate vragment = vragments.get(i);
+            VragmentManager childVragmentManager = vragment.peekChildVragmentManager();
+            entries.add(new VragmentSnapshot.Entry(classNameOf(vragment), vragment.getMarker(), i,
+                    vragment.getLifecycle().getCurrentState(),
+                    childVragmentManager != null ? childVragmentManager.buildSnapshot() : null));
+        }
+        return entries;
+    }
+
+    /**
+     * Creates content of top-most vragment of given container, if not done yet. Called after
+     * every change of the container, so a vragment gets its content once it becomes visible.
+     *
+     * @param containerId
+     */
+    private void ensureTopContent(int containerId) {
+        VragmentDelegate top = peekVragment(containerId);
+        if (top != null && top.getView() instanceof DehydratedVragment) {
+            top = rehydrate(containerId, (DehydratedVragment) top.getView());
+        }
+        if (top != null) top.ensureContent();
+    }
+
+    /**
+     * Replaces given placeholder by the actual vragment, at the same position in its stack.
+     *
+     * @param containerId
+     * @param placeholder
+     * @return the actual vragment, or null if it could not be built
+     */
+    private VragmentDelegate rehydrate(int containerId, DehydratedVragment placeholder) {
+        ViewGroup stack = (ViewGroup) placeholder.getParent();
+        VragmentDelegate vragment;
+        try {
+            vragment = VragmentDelegate.of((VragmentView) instantiate(placeholder.getVragmentClassName(), placeholder.getArguments()));
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            return null;
+        }
+        VragmentDelegate dehydrated = placeholder.getDelegate();
+        vragment.setMarker(dehydrated.getMarker());
+        vragment.setOwner(this, containerId);
+        // stack is unchanged, so the info saved for the placeholder is still valid
+        vragment.setSavedInfo(dehydrated.getSavedInfo());
+        if (dehydrated.getPendingChildState() != null) vragment.restoreChildState(dehydrated.getPendingChildState());
+        // it is rehydrated because it is shown, so it gets its content before it gets attached
+        vragment.ensureContent();
+        int index = stack.indexOfChild(placeholder);
+        stack.removeViewAt(index);
+        stack.addView(vragment.getView(), index);
+        invalidateSnapshot(containerId);
+        return vragment;
+    }
+
+    /**
+     * Returns class name of given vragment, or of the vragment it is a placeholder for.
+     *
+     * @param vragment
+     * @return
+     */
+    static String classNameOf(VragmentDelegate vragment) {
+        return vragment.getView() instanceof DehydratedVragment
+                ? ((DehydratedVragment) vragment.getView()).getVragmentClassName()
+                : vragment.getView().getClass().getName();
+    }
+
+    /**
+     * Returns top-most vragment of given container, without inflating lazy containers.
+     *
+     * @param containerId
+     * @return
+     */
+    VragmentDelegate peekVragment(@IdRes int containerId) {
+        if (!isInflated(containerId)) return null;
+        ViewGroup container = findStack(containerId);
+        if (container.getChildCount() > 0) {
+            return VragmentDelegate.of(container.getChildAt(container.getChildCount() - 1));
+        }
+        return null;
+    }
+
+    /**
+     * Finds the viewgroup holding the vragments of given container: the container itself or,
+     * in multi-stack mode, its active stack.
+     *
+     * @param containerId
+     * @return
+     */
+    private ViewGroup findStack(@IdRes int containerId) {
+        ViewGroup container = findContainer(containerId);
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        return stacks != null ? stacks.active : container;
+    }
+
+    /**
+     * Gets stack with given name of given container, adding it hidden and capped if it does not
+     * exist yet. Container must be in multi-stack mode already.
+     *
+     * @param containerId
+     * @param stackName
+     * @return
+     */
+    private VragmentStack obtainStack(@IdRes int containerId, @NonNull String stackName) {
+        ContainerStacks stacks = mContainerStacks.get(containerId);
+        if (stacks == null) {
+            switchStack(containerId, stackName);
+            return mContainerStacks.get(containerId).active;
+        }
+        VragmentStack stack = stacks.stacks.get(stackName);
+        if (stack == null) {
+            stack = new VragmentStack(mVragmentActivity, stackName);
+            stack.setMaxLifecycle(Lifecycle.State.CREATED);
+            stack.setVisibility(View.GONE);
+            findContainer(containerId).addView(stack, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+            stacks.stacks.put(stackName, stack);
+        }
+        return stack;
+    }
+
+    /**
+     * Builds info about names and active stack of all containers in multi-stack mode.
+     *
+     * @return info or null, if no container is in multi-stack mode
+     */
+    private Bundle buildStacksInfo() {
+        if (mContainerStacks.size() == 0) return null;
+        Bundle stacksInfo = new Bundle();
+        for (int i = 0; i < mContainerStacks.size(); i++) {
+            ContainerStacks stacks = mContainerStacks.valueAt(i);
+            Bundle containerInfo = new Bundle();
+            containerInfo.putStringArrayList(STACK_NAMES, new ArrayList<>(stacks.stacks.keySet()));
+            containerInfo.putString(ACTIVE_STACK, stacks.active.getName());
+            stacksInfo.putBundle(String.valueOf(mContainerStacks.keyAt(i)), containerInfo);
+        }
+        return stacksInfo;
+    }
+
+    /**
+     * Recreates stacks of containers in multi-stack mode, so saved vragments can be rebuilt into
+     * them.
+     *
+     * @param stacksInfo
+     */
+    private void restoreStacks(Bundle stacksInfo) {
+        if (stacksInfo == null) return;
+        for (String key : stacksInfo.keySet()) {
+            int containerId = Integer.parseInt(key);
+            Bundle containerInfo = stacksInfo.getBundle(key);
+            ArrayList<String> names = containerInfo.getStringArrayList(STACK_NAMES);
+            if (names == null) continue;
+            for (String name : names) obtainStack(containerId, name);
+            String active = containerInfo.getString(ACTIVE_STACK);
+            if (active != null) switchStack(containerId, active);
+        }
+    }
+
+    /**
+     * Finds container viewgroup by given containerId. Child vragment managers only look within
+     * their host vragment, avoiding a search through the whole activity.
+     * Lazy containers (ViewStubs or registered factories) are inflated by this.
      * @param containerId
      * @return
      * @throws IllegalArgumentException if not found or not a viewgroup
      */
     private ViewGroup findContainer(@IdRes int containerId) {
-        View view = mVragmentActivity.findViewById(containerId);
-        if (view == null || !(view instanceof ViewGroup)) {
-            throw new IllegalArgumentException("containerId " + containerId + " must identify a ViewGroup in current contentView");
+        ViewGroup container = mInflatedContainers.get(containerId);
+        if (container == null) {
+            ContainerFactory factory = mContainerFactories.get(containerId);
+            View view = factory != null ? factory.createContainer(containerId) : findView(containerId);
+            if (view instanceof ViewStub) {
+                // inflated view may get a different id than the stub, so remember it
+                view = ((ViewStub) view).inflate();
+            }
+            if (view == null || !(view instanceof ViewGroup)) {
+                throw new IllegalArgumentException("containerId " + containerId + " must identify a ViewGroup in current contentView");
+            }
+            container = (ViewGroup) view;
+            if (factory != null || view.getId() != containerId) {
+                mInflatedContainers.put(containerId, container);
+            }
+        }
+        if (mManagedContainerIds.add(containerId)) {
+            // newly managed container, may hold vragments from layout that were never saved
+            markDirty(containerId);
         }
-        mManagedContainerIds.add(containerId);
-        return (ViewGroup)view;
+        return container;
+    }
+
+    /**
+     * Checks if container with given id exists already, without inflating lazy containers.
+     *
+     * @param containerId
+     * @return false if the container is a not yet inflated ViewStub or registered lazy container;
+     *            true for ids that cannot be found, so callers fail in {@link #findContainer(int)}
+     */
+    private boolean isInflated(@IdRes int containerId) {
+        if (mInflatedContainers.get(containerId) != null) return true;
+        if (mContainerFactories.get(containerId) != null) return false;
+        return !(findView(containerId) instanceof ViewStub);
+    }
+
+    private View findView(@IdRes int id) {
+        return mHost != null ? mHost.getView().findViewById(id) : mVragmentActivity.findViewById(id);
     }
 
     /**
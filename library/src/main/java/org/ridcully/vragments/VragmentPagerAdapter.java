@@ -0,0 +1,386 @@
+package org.ridcully.vragments;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.ViewGroup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RecyclerView adapter hosting one Vragment per page, to be used with ViewPager2 or a plain
+ * RecyclerView. Vragments are only created for pages that get shown and are recycled by class.
+ *
+ * Only the primary page gets resumed, pages within the offscreen limit are kept started and all
+ * others are capped to created. Wire the primary page, e.g. from ViewPager2's
+ * {@code OnPageChangeCallback.onPageSelected()}, via {@link #setPrimaryItem(int)}.
+ *
+ * Saved state only consists of the primary page index and the view hierarchy state of pages that
+ * were shown, see {@link #saveState()} and {@link #restoreState(Parcelable)}. Only the states of
+ * the pages closest to the primary page are kept, see {@link #setMaxSavedPages(int)}.
+ *
+ * Vragments are destroyed once they are dropped by the RecyclerView, either because its pool of
+ * recycled views is full, or because they could not be recycled, and when the adapter is detached
+ * from the RecyclerView. For this, the adapter installs its own pool into the RecyclerView.
+ */
+
+public abstract class VragmentPagerAdapter extends RecyclerView.Adapter<VragmentPagerAdapter.PageHolder> {
+
+    private final static String TAG = VragmentPagerAdapter.class.getSimpleName();
+    private final static String PRIMARY_KEY = "primary";
+    private final static String PAGES_KEY = "pages";
+    private final static int DEFAULT_MAX_SAVED_PAGES = 10;
+
+    /** Vragment classes by view type. */
+    private List<Class<? extends VragmentView>> mVragmentClasses = new ArrayList<>();
+    /** View hierarchy state of pages that were shown and recycled, by position. */
+    private SparseArray<SparseArray<Parcelable>> mPageStates = new SparseArray<>();
+    private List<PageHolder> mBoundHolders = new ArrayList<>();
+    private int mPrimaryPosition;
+    private int mOffscreenLimit = 1;
+    private int mMaxSavedPages = DEFAULT_MAX_SAVED_PAGES;
+    private PagePool mPool;
+
+    /**
+     * Holds the vragment of a single page.
+     */
+    public static class PageHolder extends RecyclerView.ViewHolder {
+
+        final VragmentDelegate vragment;
+        int position = RecyclerView.NO_POSITION;
+
+        PageHolder(@NonNull VragmentDelegate vragment) {
+            super(vragment.getView());
+            this.vragment = vragment;
+        }
+
+        public VragmentView getVragment() {
+            return vragment.getVragment();
+        }
+    }
+
+    /**
+     * Pool of recycled pages, destroying vragments it drops, as RecyclerView does not tell
+     * adapters about views dropped from its pool. Mirrors the per view type limits of the
+     * pool, as those are not exposed.
+     */
+    private static class PagePool extends RecyclerView.RecycledViewPool {
+
+        /** Default limit per view type of RecycledViewPool. */
+        private final static int DEFAULT_MAX_RECYCLED = 5;
+
+        private final SparseIntArray mMaxRecycled = new SparseIntArray();
+        /** Pooled holders in order of being pooled, as RecycledViewPool trims the latest ones. */
+        private final List<RecyclerView.ViewHolder> mPooled = new ArrayList<>();
+
+        @Override
+        public void setMaxRecycledViews(int viewType, int max) {
+            mMaxRecycled.put(viewType, max);
+            super.setMaxRecycledViews(viewType, max);
+            int count = 0;
+            for (int i = 0; i < mPooled.size(); i++) {
+                if (mPooled.get(i).getItemViewType() == viewType) count++;
+            }
+            for (int i = mPooled.size() - 1; i >= 0 && count > max; i--) {
+                if (mPooled.get(i).getItemViewType() == viewType) {
+                    destroy(mPooled.remove(i));
+                    count--;
+                }
+            }
+        }
+
+        @Override
+        public RecyclerView.ViewHolder getRecycledView(int viewType) {
+            RecyclerView.ViewHolder holder = super.getRecycledView(viewType);
+            if (holder != null) mPooled.remove(holder);
+            return holder;
+        }
+
+        @Override
+        public void putRecycledView(RecyclerView.ViewHolder holder) {
+            int viewType = holder.getItemViewType();
+            boolean destroyed = holder instanceof PageHolder && ((PageHolder) holder).vragment.isDestroyed();
+            if (destroyed || getRecycledViewCount(viewType) >= mMaxRecycled.get(viewType, DEFAULT_MAX_RECYCLED)) {
+                destroy(holder);
+                return;
+            }
+            mPooled.add(holder);
+            super.putRecycledView(holder);
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < mPooled.size(); i++) destroy(mPooled.get(i));
+            mPooled.clear();
+            super.clear();
+        }
+
+        private static void destroy(RecyclerView.ViewHolder holder) {
+            if (holder instanceof PageHolder) ((PageHolder) holder).vragment.dispatchDestroy();
+        }
+    }
+
+    /**
+     * Returns the vragment class for the page at given position. Vragments are recycled by class.
+     *
+     * @param position
+     * @return
+     */
+    @NonNull
+    protected abstract Class<? extends VragmentView> getVragmentClass(int position);
+
+    /**
+     * Binds given vragment, which may have been used for another page before, to the page at
+     * given position.
+     *
+     * @param vragment
+     * @param position
+     */
+    protected abstract void onBindVragment(@NonNull VragmentView vragment, int position);
+
+    /**
+     * Creates a vragment of given class. By default the constructor taking only a context is
+     * used; override for other constructors.
+     *
+     * @param context
+     * @param vragmentClass
+     * @return
+     */
+    @NonNull
+    protected VragmentView onCreateVragment(@NonNull Context context, @NonNull Class<? extends VragmentView> vragmentClass) {
+        try {
+            return vragmentClass.getConstructor(Context.class).newInstance(context);
+        } catch (Exception e) {
+            Log.e(TAG, e.getMessage(), e);
+            throw new IllegalStateException("Could not create " + vragmentClass.getName()
+                    + ", override onCreateVragment() if it has no (Context) constructor", e);
+        }
+    }
+
+    /**
+     * Sets the page the user currently looks at. This one gets resumed, all other pages are
+     * capped to started or created, depending on their distance.
+     *
+     * @param position
+     */
+    public void setPrimaryItem(int position) {
+        if (position == mPrimaryPosition) return;
+        mPrimaryPosition = position;
+        // lower caps first, so the previous page gets paused before the new one gets resumed
+        for (int i = 0; i < mBoundHolders.size(); i++) {
+            PageHolder holder = mBoundHolders.get(i);
+            if (maxLifecycleFor(holder.position).compareTo(holder.vragment.getMaxLifecycle()) < 0) {
+                holder.vragment.setMaxLifecycle(maxLifecycleFor(holder.position));
+            }
+        }
+        for (int i = 0; i < mBoundHolders.size(); i++) {
+            PageHolder holder = mBoundHolders.get(i);
+            if (maxLifecycleFor(holder.position).compareTo(holder.vragment.getMaxLifecycle()) > 0) {
+                holder.vragment.setMaxLifecycle(maxLifecycleFor(holder.position));
+            }
+        }
+    }
+
+    public int getPrimaryItem() {
+        return mPrimaryPosition;
+    }
+
+    /**
+     * Sets for how many pages the view hierarchy state is kept; states of the pages furthest
+     * from the primary page are dropped first. Default is 10.
+     *
+     * @param maxSavedPages
+     */
+    public void setMaxSavedPages(int maxSavedPages) {
+        mMaxSavedPages = maxSavedPages;
+        trimPageStates();
+    }
+
+    /**
+     * Sets how many pages on each side of the primary page are kept started. Pages further away
+     * are capped to created. Default is 1.
+     *
+     * @param offscreenLimit
+     */
+    public void setOffscreenLimit(int offscreenLimit) {
+        mOffscreenLimit = offscreenLimit;
+        for (int i = 0; i < mBoundHolders.size(); i++) {
+            PageHolder holder = mBoundHolders.get(i);
+            holder.vragment.setMaxLifecycle(maxLifecycleFor(holder.position));
+        }
+    }
+
+    /**
+     * Returns the vragment currently showing the page at given position, if any. Like
+     * findViewById, the result is typed as needed by the caller.
+     *
+     * @param position
+     * @return
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <V extends VragmentView> V getVragmentAt(int position) {
+        for (int i = 0; i < mBoundHolders.size(); i++) {
+            if (mBoundHolders.get(i).position == position) return (V) mBoundHolders.get(i).getVragment();
+        }
+        return null;
+    }
+
+    /**
+     * Saves primary page index and the view hierarchy state of all pages shown so far.
+     *
+     * @return
+     */
+    @NonNull
+    public Parcelable saveState() {
+        for (int i = 0; i < mBoundHolders.size(); i++) savePageState(mBoundHolders.get(i));
+        Bundle pages = new Bundle();
+        for (int i = 0; i < mPageStates.size(); i++) {
+            pages.putSparseParcelableArray(String.valueOf(mPageStates.keyAt(i)), mPageStates.valueAt(i));
+        }
+        Bundle state = new Bundle();
+        state.putInt(PRIMARY_KEY, mPrimaryPosition);
+        state.putBundle(PAGES_KEY, pages);
+        return state;
+    }
+
+    /**
+     * Restores state saved by {@link #saveState()}. Call before pages get bound, i.e. before
+     * setting the adapter.
+     *
+     * @param state
+     */
+    public void restoreState(@Nullable Parcelable state) {
+        if (!(state instanceof Bundle)) return;
+        Bundle bundle = (Bundle) state;
+        bundle.setClassLoader(getClass().getClassLoader());
+        mPrimaryPosition = bundle.getInt(PRIMARY_KEY);
+        mPageStates.clear();
+        Bundle pages = bundle.getBundle(PAGES_KEY);
+        if (pages == null) return;
+        for (String key : pages.keySet()) {
+            SparseArray<Parcelable> pageState = pages.getSparseParcelableArray(key);
+            if (pageState != null) mPageStates.put(Integer.parseInt(key), pageState);
+        }
+    }
+
+
+    // ------------------------------------------------------------------------------ Adapter stuff
+
+
+    @Override
+    public final int getItemViewType(int position) {
+        Class<? extends VragmentView> vragmentClass = getVragmentClass(position);
+        int viewType = mVragmentClasses.indexOf(vragmentClass);
+        if (viewType < 0) {
+            viewType = mVragmentClasses.size();
+            mVragmentClasses.add(vragmentClass);
+        }
+        return viewType;
+    }
+
+    @NonNull
+    @Override
+    public PageHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        VragmentDelegate vragment = VragmentDelegate.of(onCreateVragment(parent.getContext(), mVragmentClasses.get(viewType)));
+        vragment.getView().setLayoutParams(new RecyclerView.LayoutParams(
+                ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+        return new PageHolder(vragment);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull PageHolder holder, int position) {
+        if (holder.position != position) savePageState(holder);
+        holder.position = position;
+        // cap before the vragment gets attached, so it never goes beyond
+        holder.vragment.setMaxLifecycle(maxLifecycleFor(position));
+        onBindVragment(holder.getVragment(), position);
+        SparseArray<Parcelable> pageState = mPageStates.get(position);
+        if (pageState != null) holder.vragment.getView().restoreHierarchyState(pageState);
+        if (!mBoundHolders.contains(holder)) mBoundHolders.add(holder);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull PageHolder holder) {
+        savePageState(holder);
+        mBoundHolders.remove(holder);
+        holder.position = RecyclerView.NO_POSITION;
+    }
+
+    @Override
+    public boolean onFailedToRecycleView(@NonNull PageHolder holder) {
+        // the RecyclerView drops the holder, so its vragment is never used again
+        savePageState(holder);
+        mBoundHolders.remove(holder);
+        holder.position = RecyclerView.NO_POSITION;
+        holder.vragment.dispatchDestroy();
+        return false;
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        if (recyclerView.getRecycledViewPool() instanceof PagePool) {
+            mPool = (PagePool) recyclerView.getRecycledViewPool();
+        } else {
+            mPool = new PagePool();
+            recyclerView.setRecycledViewPool(mPool);
+        }
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        for (int i = 0; i < mBoundHolders.size(); i++) {
+            PageHolder holder = mBoundHolders.get(i);
+            savePageState(holder);
+            holder.vragment.dispatchDestroy();
+        }
+        mBoundHolders.clear();
+        if (mPool != null) mPool.clear();
+        mPool = null;
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    private void savePageState(PageHolder holder) {
+        if (holder.position == RecyclerView.NO_POSITION) return;
+        SparseArray<Parcelable> pageState = new SparseArray<>();
+        holder.vragment.getView().saveHierarchyState(pageState);
+        mPageStates.put(holder.position, pageState);
+        trimPageStates();
+    }
+
+    /**
+     * Drops states of the pages furthest from the primary page, until at most mMaxSavedPages
+     * are left.
+     */
+    private void trimPageStates() {
+        while (mPageStates.size() > mMaxSavedPages) {
+            int furthest = 0;
+            for (int i = 1; i < mPageStates.size(); i++) {
+                if (Math.abs(mPageStates.keyAt(i) - mPrimaryPosition)
+                        > Math.abs(mPageStates.keyAt(furthest) - mPrimaryPosition)) {
+                    furthest = i;
+                }
+            }
+            mPageStates.removeAt(furthest);
+        }
+    }
+
+    private Lifecycle.State maxLifecycleFor(int position) {
+        int distance = Math.abs(position - mPrimaryPosition);
+        if (distance == 0) return Lifecycle.State.RESUMED;
+        if (distance <= mOffscreenLimit) return Lifecycle.State.STARTED;
+        return Lifecycle.State.CREATED;
+    }
+}
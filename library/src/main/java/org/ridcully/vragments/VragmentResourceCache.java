@@ -0,0 +1,153 @@
+package org.ridcully.vragments;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import androidx.annotation.ColorRes;
+import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
+import androidx.annotation.StringRes;
+import androidx.core.content.ContextCompat;
+
+import java.util.Arrays;
+
+/**
+ * Cache for resources used by the vragments of an activity, backing the convenience methods
+ * like {@link Vragment#getDrawable(int)}. Drawables share their constant state, so only the
+ * first request for a drawable actually loads it. Formatted strings are only cached, if all
+ * format arguments are immutable values.
+ *
+ * Resources depend on the configuration, so the cache is cleared when it changes.
+ */
+
+@MainThread
+final class VragmentResourceCache {
+
+    private final static int MAX_FORMATTED_STRINGS = 64;
+
+    private final Context mContext;
+    private final SparseArray<Drawable.ConstantState> mDrawableStates = new SparseArray<>();
+    private final SparseIntArray mColors = new SparseIntArray();
+    private final SparseArray<String> mStrings = new SparseArray<>();
+    private final SparseArray<CharSequence> mTexts = new SparseArray<>();
+    private final LruCache<FormattedString, String> mFormattedStrings = new LruCache<>(MAX_FORMATTED_STRINGS);
+
+    private static final class FormattedString {
+        final int resId;
+        final Object[] formatArgs;
+
+        FormattedString(int resId, Object[] formatArgs) {
+            this.resId = resId;
+            this.formatArgs = formatArgs;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FormattedString)) return false;
+            FormattedString other = (FormattedString) o;
+            return resId == other.resId && Arrays.equals(formatArgs, other.formatArgs);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * resId + Arrays.hashCode(formatArgs);
+        }
+    }
+
+    VragmentResourceCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns a new drawable for given resource, sharing constant state with all drawables
+     * previously returned for it. Use {@link Drawable#mutate()} before modifying it.
+     *
+     * @param resId
+     * @return
+     */
+    Drawable getDrawable(@DrawableRes int resId) {
+        Drawable.ConstantState state = mDrawableStates.get(resId);
+        if (state != null) return state.newDrawable(mContext.getResources(), mContext.getTheme());
+        Drawable drawable = ContextCompat.getDrawable(mContext, resId);
+        if (drawable != null && drawable.getConstantState() != null) {
+            mDrawableStates.put(resId, drawable.getConstantState());
+        }
+        return drawable;
+    }
+
+    int getColor(@ColorRes int resId) {
+        int index = mColors.indexOfKey(resId);
+        if (index >= 0) return mColors.valueAt(index);
+        int color = ContextCompat.getColor(mContext, resId);
+        mColors.put(resId, color);
+        return color;
+    }
+
+    String getString(@StringRes int resId) {
+        String string = mStrings.get(resId);
+        if (string == null) {
+            string = mContext.getString(resId);
+            mStrings.put(resId, string);
+        }
+        return string;
+    }
+
+    String getString(@StringRes int resId, Object... formatArgs) {
+        if (!isImmutable(formatArgs)) return mContext.getString(resId, formatArgs);
+        // copy, so callers can reuse their array
+        FormattedString key = new FormattedString(resId, formatArgs.clone());
+        String string = mFormattedStrings.get(key);
+        if (string == null) {
+            string = mContext.getString(resId, formatArgs);
+            mFormattedStrings.put(key, string);
+        }
+        return string;
+    }
+
+    CharSequence getText(@StringRes int resId) {
+        CharSequence text = mTexts.get(resId);
+        if (text == null) {
+            text = mContext.getText(resId);
+            mTexts.put(resId, text);
+        }
+        return text;
+    }
+
+    void clear() {
+        mDrawableStates.clear();
+        mColors.clear();
+        mStrings.clear();
+        mTexts.clear();
+        mFormattedStrings.evictAll();
+    }
+
+    /**
+     * Drops formatted strings on any memory pressure, and everything if it gets serious.
+     *
+     * @param level as passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    void onTrimMemory(int level) {
+        mFormattedStrings.evictAll();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        }
+    }
+
+    private static boolean isImmutable(Object[] formatArgs) {
+        if (formatArgs == null) return false;
+        for (Object arg : formatArgs) {
+            if (!(arg instanceof String || arg instanceof Integer || arg instanceof Long
+                    || arg instanceof Short || arg instanceof Byte || arg instanceof Character
+                    || arg instanceof Boolean || arg instanceof Float || arg instanceof Double
+                    || arg instanceof Enum)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
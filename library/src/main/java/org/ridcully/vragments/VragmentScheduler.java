@@ -0,0 +1,165 @@
+package org.ridcully.vragments;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs chunks of main-thread work, e.g. setup of heavy vragments, spread over frames so each
+ * frame stays within its budget. Schedule chunks via {@link VragmentView#schedule(int, Runnable)}.
+ *
+ * <ul>
+ *     <li>Chunks run right after a frame, until the budget of that frame is used up; at least one
+ *     chunk runs per frame, so work always makes progress.</li>
+ *     <li>Chunks of higher priority run first; chunks of vragments on top of their container and
+ *     shown run before all others. Equal chunks run in order of scheduling.</li>
+ *     <li>Chunks only run while their vragment is attached. Chunks scheduled before are held by
+ *     the vragment until it gets attached, pending chunks are cancelled when it gets detached or
+ *     destroyed.</li>
+ * </ul>
+ */
+
+@MainThread
+public final class VragmentScheduler {
+
+    public final static int PRIORITY_LOW = -10;
+    public final static int PRIORITY_DEFAULT = 0;
+    public final static int PRIORITY_HIGH = 10;
+
+    private final static long DEFAULT_FRAME_BUDGET_MS = 8;
+
+    private static VragmentScheduler sInstance;
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** Pending chunks in order of scheduling; picked by priority, as boosts change over time. */
+    private final ArrayList<Chunk> mChunks = new ArrayList<>();
+    private long mFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRAME_BUDGET_MS);
+    private long mFrameTimeNanos;
+    private boolean mFrameScheduled;
+
+    final static class Chunk {
+        final VragmentDelegate mVragment;
+        final int mPriority;
+        final Runnable mWork;
+
+        Chunk(VragmentDelegate vragment, int priority, Runnable work) {
+            mVragment = vragment;
+            mPriority = priority;
+            mWork = work;
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            // run after this frame was drawn, not in front of it
+            mFrameTimeNanos = frameTimeNanos;
+            mHandler.post(mRunChunks);
+        }
+    };
+
+    private final Runnable mRunChunks = new Runnable() {
+        @Override
+        public void run() {
+            mFrameScheduled = false;
+            long deadline = mFrameTimeNanos + mFrameBudgetNanos;
+            do {
+                Chunk chunk = pollNext();
+                if (chunk == null) break;
+                chunk.mWork.run();
+            } while (System.nanoTime() < deadline);
+            if (!mChunks.isEmpty()) scheduleFrame();
+        }
+    };
+
+    private VragmentScheduler() {
+    }
+
+    /**
+     * Returns the scheduler of the main thread.
+     *
+     * @return the scheduler
+     * @throws IllegalStateException if not called on the main thread
+     */
+    public static VragmentScheduler get() {
+        checkMainThread();
+        if (sInstance == null) sInstance = new VragmentScheduler();
+        return sInstance;
+    }
+
+    /**
+     * Sets time per frame, measured from its start, up to which chunks are run; 8ms by default.
+     *
+     * @param budgetMs
+     * @return this scheduler for concatenating further calls
+     */
+    public VragmentScheduler setFrameBudget(long budgetMs) {
+        mFrameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        return this;
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    /**
+     * Schedules given chunk; its vragment must be attached, so it gets cancelled on detach.
+     *
+     * @param chunk
+     */
+    void schedule(@NonNull Chunk chunk) {
+        mChunks.add(chunk);
+        scheduleFrame();
+    }
+
+    /**
+     * Cancels all pending chunks of given vragment.
+     *
+     * @param vragment
+     */
+    void cancel(@NonNull VragmentDelegate vragment) {
+        for (int i = mChunks.size() - 1; i >= 0; i--) {
+            if (mChunks.get(i).mVragment == vragment) mChunks.remove(i);
+        }
+    }
+
+    static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("Chunks must be scheduled on the main thread");
+        }
+    }
+
+    private void scheduleFrame() {
+        if (mFrameScheduled) return;
+        mFrameScheduled = true;
+        mChoreographer.postFrameCallback(mFrameCallback);
+    }
+
+    /**
+     * Removes and returns the next chunk to run, or null if there is none. Boosts are evaluated
+     * here, so they follow navigation happening while chunks are pending.
+     *
+     * @return
+     */
+    private Chunk pollNext() {
+        int best = -1;
+        boolean bestBoosted = false;
+        for (int i = 0; i < mChunks.size(); i++) {
+            Chunk chunk = mChunks.get(i);
+            boolean boosted = chunk.mVragment.isShownOnTop();
+            if (best < 0 || (boosted && !bestBoosted)
+                    || (boosted == bestBoosted && chunk.mPriority > mChunks.get(best).mPriority)) {
+                best = i;
+                bestBoosted = boosted;
+            }
+        }
+        return best < 0 ? null : mChunks.remove(best);
+    }
+}
@@ -0,0 +1,193 @@
+package org.ridcully.vragments;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable snapshot of the stacks of all containers of a {@link VragmentManager}, including
+ * those of nested child vragment managers. Snapshots can be read from any thread.
+ *
+ * Snapshots are structurally shared: containers not changed since the previous snapshot are
+ * the very same instances, so consumers can cheaply detect changes by comparing references.
+ *
+ * @see VragmentManager#getSnapshot()
+ * @see VragmentManager#addSnapshotListener(VragmentManager.SnapshotListener)
+ */
+
+public final class VragmentSnapshot {
+
+    static final VragmentSnapshot EMPTY = new VragmentSnapshot(Collections.<Container>emptyList());
+
+    private final List<Container> mContainers;
+
+    VragmentSnapshot(List<Container> containers) {
+        mContainers = Collections.unmodifiableList(containers);
+    }
+
+    /**
+     * Returns snapshots of all containers, ordered by container id.
+     *
+     * @return
+     */
+    @NonNull
+    public List<Container> getContainers() {
+        return mContainers;
+    }
+
+    /**
+     * Returns snapshot of container with given id.
+     *
+     * @param containerId
+     * @return the container snapshot, or null if the container is not managed
+     */
+    @Nullable
+    public Container getContainer(int containerId) {
+        for (Container container : mContainers) {
+            if (container.mContainerId == containerId) return container;
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return mContainers.toString();
+    }
+
+    /**
+     * Snapshot of the stack, or in multi-stack mode the stacks, of a container.
+     */
+    public static final class Container {
+
+        private final int mContainerId;
+        private final String mActiveStack;
+        private final List<Entry> mEntries;
+        private final Map<String, List<Entry>> mStacks;
+
+        Container(int containerId, String activeStack, List<Entry> entries, Map<String, List<Entry>> stacks) {
+            mContainerId = containerId;
+            mActiveStack = activeStack;
+            mEntries = Collections.unmodifiableList(entries);
+            mStacks = Collections.unmodifiableMap(stacks);
+        }
+
+        public int getContainerId() {
+            return mContainerId;
+        }
+
+        /**
+         * Returns name of the active stack.
+         *
+         * @return the name, or null if the container is not in multi-stack mode
+         */
+        @Nullable
+        public String getActiveStack() {
+            return mActiveStack;
+        }
+
+        /**
+         * Returns vragments of the (active) stack, bottom-most first.
+         *
+         * @return
+         */
+        @NonNull
+        public List<Entry> getEntries() {
+            return mEntries;
+        }
+
+        /**
+         * Returns vragments of all stacks by name, in multi-stack mode.
+         *
+         * @return the stacks, empty if the container is not in multi-stack mode
+         */
+        @NonNull
+        public Map<String, List<Entry>> getStacks() {
+            return mStacks;
+        }
+
+        /**
+         * Returns the top-most vragment of the (active) stack.
+         *
+         * @return the top-most entry, or null if the stack is empty
+         */
+        @Nullable
+        public Entry getTop() {
+            return mEntries.isEmpty() ? null : mEntries.get(mEntries.size() - 1);
+        }
+
+        @Override
+        public String toString() {
+            return mContainerId + (mActiveStack != null ? "/" + mActiveStack : "") + "=" + mEntries;
+        }
+    }
+
+    /**
+     * Snapshot of a single vragment in a stack.
+     */
+    public static final class Entry {
+
+        private final String mClassName;
+        private final String mMarker;
+        private final int mDepth;
+        private final Lifecycle.State mState;
+        private final VragmentSnapshot mChildren;
+
+        Entry(String className, String marker, int depth, Lifecycle.State state, VragmentSnapshot children) {
+            mClassName = className;
+            mMarker = marker;
+            mDepth = depth;
+            mState = state;
+            mChildren = children;
+        }
+
+        @NonNull
+        public String getClassName() {
+            return mClassName;
+        }
+
+        @Nullable
+        public String getMarker() {
+            return mMarker;
+        }
+
+        /**
+         * Returns position of the vragment in its stack, 0 being the bottom-most.
+         *
+         * @return
+         */
+        public int getDepth() {
+            return mDepth;
+        }
+
+        /**
+         * Returns lifecycle state of the vragment, when the snapshot was taken.
+         *
+         * @return
+         */
+        @NonNull
+        public Lifecycle.State getState() {
+            return mState;
+        }
+
+        /**
+         * Returns snapshot of the vragment's child vragment manager.
+         *
+         * @return the snapshot, or null if the vragment has no child vragment manager
+         */
+        @Nullable
+        public VragmentSnapshot getChildren() {
+            return mChildren;
+        }
+
+        @Override
+        public String toString() {
+            String name = mClassName.substring(mClassName.lastIndexOf('.') + 1);
+            return name + (mMarker != null ? "(" + mMarker + ")" : "") + ":" + mState
+                    + (mChildren != null ? mChildren.toString() : "");
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Describes a vragment in a stack set via {@link VragmentManager#setStack(int, java.util.List)}:
+ * its class, arguments and marker. Vragments already in the stack matching their spec are kept.
+ */
+
+public final class VragmentSpec {
+
+    private final Class<? extends VragmentView> mVragmentClass;
+    private final Bundle mArguments;
+    private final String mMarker;
+
+    public VragmentSpec(@NonNull Class<? extends VragmentView> vragmentClass) {
+        this(vragmentClass, null, null);
+    }
+
+    public VragmentSpec(@NonNull Class<? extends VragmentView> vragmentClass, @Nullable Bundle arguments) {
+        this(vragmentClass, arguments, null);
+    }
+
+    public VragmentSpec(@NonNull Class<? extends VragmentView> vragmentClass, @Nullable Bundle arguments, @Nullable String marker) {
+        mVragmentClass = vragmentClass;
+        mArguments = arguments;
+        mMarker = marker;
+    }
+
+    @NonNull
+    public Class<? extends VragmentView> getVragmentClass() {
+        return mVragmentClass;
+    }
+
+    @Nullable
+    public Bundle getArguments() {
+        return mArguments;
+    }
+
+    @Nullable
+    public String getMarker() {
+        return mMarker;
+    }
+
+    /**
+     * Checks, if given vragment matches this spec, i.e. has same class, marker and arguments.
+     *
+     * @param vragment
+     * @return
+     */
+    boolean matches(VragmentDelegate vragment) {
+        return VragmentManager.classNameOf(vragment).equals(mVragmentClass.getName())
+                && (mMarker == null ? vragment.getMarker() == null : mMarker.equals(vragment.getMarker()))
+                && bundlesEqual(mArguments, vragment.currentArguments());
+    }
+
+    /**
+     * Compares bundles by content; null and empty bundles are considered equal.
+     *
+     * @param a
+     * @param b
+     * @return
+     */
+    static boolean bundlesEqual(Bundle a, Bundle b) {
+        if (a == b) return true;
+        if (a == null || a.isEmpty()) return b == null || b.isEmpty();
+        if (b == null || a.size() != b.size()) return false;
+        for (String key : a.keySet()) {
+            if (!b.containsKey(key) || !valuesEqual(a.get(key), b.get(key))) return false;
+        }
+        return true;
+    }
+
+    private static boolean valuesEqual(Object a, Object b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        if (a instanceof Bundle && b instanceof Bundle) return bundlesEqual((Bundle) a, (Bundle) b);
+        if (a.getClass().isArray() && b.getClass().isArray()) {
+            // wrap, so deepEquals handles primitive arrays as well
+            return Arrays.deepEquals(new Object[] { a }, new Object[] { b });
+        }
+        return a.equals(b);
+    }
+}
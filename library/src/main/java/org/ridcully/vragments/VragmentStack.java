@@ -0,0 +1,63 @@
+package org.ridcully.vragments;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.widget.FrameLayout;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+
+/**
+ * One of several named stacks of a container in multi-stack mode, holding the vragments of that
+ * stack. Inactive stacks stay in the container, but are hidden and capped to
+ * {@link androidx.lifecycle.Lifecycle.State#CREATED}, so switching between stacks neither
+ * destroys nor re-inflates any vragment.
+ *
+ * A plain FrameLayout, not a Vragment, so stacks take no part in lifecycle dispatch, watchdog
+ * and snapshots. The cap applies to the vragments of the stack, see
+ * {@link VragmentDelegate#getEffectiveMaxLifecycle()}.
+ *
+ * @see VragmentManager#switchStack(int, String)
+ */
+
+@SuppressLint("ViewConstructor")
+final class VragmentStack extends FrameLayout {
+
+    private final String mName;
+    private Lifecycle.State mMaxLifecycle = Lifecycle.State.RESUMED;
+
+    VragmentStack(@NonNull Context context, @NonNull String name) {
+        super(context);
+        mName = name;
+        // children are saved by VragmentManager, not by view hierarchy state of this stack
+        setSaveEnabled(false);
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Sets upper limit for the lifecycle of all vragments of this stack, moving them down or
+     * up to it, as far as their host and own caps allow.
+     *
+     * @param maxLifecycle
+     */
+    void setMaxLifecycle(@NonNull Lifecycle.State maxLifecycle) {
+        mMaxLifecycle = maxLifecycle;
+        for (int i = 0; i < getChildCount(); i++) {
+            VragmentDelegate vragment = VragmentDelegate.of(getChildAt(i));
+            if (vragment == null) continue;
+            if (!maxLifecycle.isAtLeast(Lifecycle.State.RESUMED)) vragment.dispatchPause();
+            if (!maxLifecycle.isAtLeast(Lifecycle.State.STARTED)) vragment.dispatchStop();
+            Lifecycle.State host = vragment.getHostLifecycleState();
+            if (host.isAtLeast(Lifecycle.State.STARTED)) vragment.dispatchStart();
+            if (host.isAtLeast(Lifecycle.State.RESUMED)) vragment.dispatchResume();
+        }
+    }
+
+    @NonNull
+    Lifecycle.State getMaxLifecycle() {
+        return mMaxLifecycle;
+    }
+}
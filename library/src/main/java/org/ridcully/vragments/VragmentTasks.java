@@ -0,0 +1,253 @@
+package org.ridcully.vragments;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs background work bound to the lifecycle of a Vragment. Get it via {@link Vragment#getTasks()}.
+ *
+ * <ul>
+ *     <li>All running tasks are cancelled when the vragment gets detached or destroyed.</li>
+ *     <li>Results are delivered on the main thread, but only while the vragment is started.
+ *     Results arriving while it is stopped are held back and delivered when it gets started
+ *     again, keeping only the latest result per key.</li>
+ * </ul>
+ */
+
+public final class VragmentTasks {
+
+    private final static String TAG = VragmentTasks.class.getSimpleName();
+
+    private static Executor sDefaultExecutor;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Executor mExecutor;
+    /** Tasks submitted and not yet delivered or cancelled; only accessed on main thread. */
+    private final List<Task<?>> mTasks = new ArrayList<>();
+    /** Finished tasks waiting for the vragment to get started, by key. */
+    private final Map<Object, Task<?>> mPendingResults = new LinkedHashMap<>();
+    private boolean mDeliveryPaused = true;
+
+    /**
+     * Receives the result of a task on the main thread.
+     *
+     * @param <T> type of the result
+     */
+    public abstract static class Callback<T> {
+
+        public abstract void onResult(T result);
+
+        /**
+         * Invoked instead of onResult, if the task threw. By default the error is logged.
+         *
+         * @param error
+         */
+        public void onError(@NonNull Throwable error) {
+            Log.e(TAG, error.getMessage(), error);
+        }
+    }
+
+    /**
+     * A submitted task; can be cancelled.
+     *
+     * @param <T> type of the result
+     */
+    public final class Task<T> extends FutureTask<T> {
+
+        private final Object mKey;
+        private final Callback<T> mCallback;
+        private final Runnable mDeliver = new Runnable() {
+            @Override
+            public void run() {
+                onTaskDone(Task.this);
+            }
+        };
+
+        Task(Object key, Callable<T> work, Callback<T> callback) {
+            super(work);
+            mKey = key;
+            mCallback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) mMainHandler.post(mDeliver);
+        }
+
+        /** Key used for coalescing results; the callback, if task was submitted without key. */
+        Object coalesceKey() {
+            return mKey != null ? mKey : mCallback;
+        }
+
+        void deliver() {
+            if (mCallback == null) return;
+            T result;
+            try {
+                result = get();
+            } catch (ExecutionException e) {
+                mCallback.onError(e.getCause() != null ? e.getCause() : e);
+                return;
+            } catch (Exception e) {
+                mCallback.onError(e);
+                return;
+            }
+            mCallback.onResult(result);
+        }
+    }
+
+    VragmentTasks() {
+        mExecutor = getDefaultExecutor();
+    }
+
+    /**
+     * Sets the executor used for running tasks of vragments calling {@link Vragment#getTasks()}
+     * for the first time afterwards; vragments that got their tasks already keep their executor.
+     * By default a small pool of background priority threads is used.
+     *
+     * @param executor
+     */
+    public static synchronized void setDefaultExecutor(@Nullable Executor executor) {
+        sDefaultExecutor = executor;
+    }
+
+    /**
+     * Runs given work in background and delivers its result to given callback.
+     *
+     * @param work
+     * @param callback may be null, if no result is needed
+     * @return the task, e.g. for cancelling it
+     */
+    @MainThread
+    public <T> Task<T> submit(@NonNull Callable<T> work, @Nullable Callback<T> callback) {
+        return submit(null, work, callback);
+    }
+
+    /**
+     * Runs given work in background and delivers its result to given callback. A still running
+     * task and a not yet delivered result submitted with the same key are cancelled, so only
+     * the latest result per key is delivered.
+     *
+     * @param key identifies the kind of work, e.g. "load-details"; may be null
+     * @param work
+     * @param callback may be null, if no result is needed
+     * @return the task, e.g. for cancelling it
+     */
+    @MainThread
+    public <T> Task<T> submit(@Nullable Object key, @NonNull Callable<T> work, @Nullable Callback<T> callback) {
+        if (key != null) cancel(key);
+        Task<T> task = new Task<>(key, work, callback);
+        mTasks.add(task);
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * Cancels running task and pending result submitted with given key.
+     *
+     * @param key
+     */
+    @MainThread
+    public void cancel(@NonNull Object key) {
+        for (int i = mTasks.size() - 1; i >= 0; i--) {
+            Task<?> task = mTasks.get(i);
+            if (key.equals(task.mKey)) {
+                task.cancel(true);
+                mTasks.remove(i);
+            }
+        }
+        mPendingResults.remove(key);
+    }
+
+    /**
+     * Cancels all running tasks and drops all pending results.
+     */
+    @MainThread
+    public void cancelAll() {
+        for (int i = 0; i < mTasks.size(); i++) mTasks.get(i).cancel(true);
+        mTasks.clear();
+        mPendingResults.clear();
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    /**
+     * Called by vragment when it gets started; delivers results held back while stopped.
+     */
+    void onStarted() {
+        mDeliveryPaused = false;
+        // remove each result only when delivering it, so the rest stays pending if a callback
+        // stops the vragment; iterator is obtained anew, as callbacks may cancel or submit
+        while (!mDeliveryPaused && !mPendingResults.isEmpty()) {
+            Iterator<Task<?>> iterator = mPendingResults.values().iterator();
+            Task<?> task = iterator.next();
+            iterator.remove();
+            task.deliver();
+        }
+    }
+
+    /**
+     * Called by vragment when it gets stopped; results are held back until started again.
+     */
+    void onStopped() {
+        mDeliveryPaused = true;
+    }
+
+    private void onTaskDone(Task<?> task) {
+        // task no longer tracked means it was cancelled in the meantime
+        if (!mTasks.remove(task) || task.isCancelled()) return;
+        if (mDeliveryPaused) {
+            mPendingResults.put(task.coalesceKey(), task);
+        } else {
+            task.deliver();
+        }
+    }
+
+    private static synchronized Executor getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            int threads = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull final Runnable runnable) {
+                            Thread thread = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "VragmentTasks #" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sDefaultExecutor = executor;
+        }
+        return sDefaultExecutor;
+    }
+}
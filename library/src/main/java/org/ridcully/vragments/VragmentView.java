@@ -0,0 +1,123 @@
+package org.ridcully.vragments;
+
+import android.os.Bundle;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+/**
+ * A vragment, whichever layout it is based on. Do not implement this directly, but extend
+ * {@link Vragment}, {@link LinearVragment} or {@link ConstraintVragment}; all of them share the
+ * same lifecycle, so they can be mixed freely in containers of a {@link VragmentManager}.
+ *
+ * Pick the base matching the root of the vragment's layout, and use <code>&lt;merge&gt;</code>
+ * as root of the layout, so its children become the direct children of the vragment instead of
+ * adding another level to the hierarchy.
+ */
+
+public interface VragmentView extends LifecycleOwner {
+
+    /**
+     * @see Vragment#getArguments()
+     */
+    Bundle getArguments();
+
+    /**
+     * @see Vragment#getArguments(ArgsCodec)
+     */
+    @Nullable
+    <T> T getArguments(@NonNull ArgsCodec<T> codec);
+
+    /**
+     * @see Vragment#getChildVragmentManager()
+     */
+    VragmentManager getChildVragmentManager();
+
+    /**
+     * @see Vragment#getTasks()
+     */
+    VragmentTasks getTasks();
+
+    /**
+     * @see Vragment#schedule(int, Runnable)
+     */
+    @MainThread
+    VragmentView schedule(int priority, @NonNull Runnable chunk);
+
+    /**
+     * @see Vragment#getCachedData(String)
+     */
+    @Nullable
+    <T> T getCachedData(@NonNull String key);
+
+    /**
+     * @see Vragment#putCachedData(String, Object)
+     */
+    void putCachedData(@NonNull String key, @NonNull Object data);
+
+    /**
+     * @see Vragment#setMaxLifecycle(Lifecycle.State)
+     */
+    void setMaxLifecycle(@NonNull Lifecycle.State maxLifecycle);
+
+    /**
+     * @see Vragment#getMaxLifecycle()
+     */
+    @NonNull
+    Lifecycle.State getMaxLifecycle();
+
+    /**
+     * @see Vragment#setVisibilityTracked(boolean)
+     */
+    void setVisibilityTracked(boolean tracked);
+
+    boolean isVisibilityTracked();
+
+    /**
+     * @see Vragment#hasContent()
+     */
+    boolean hasContent();
+
+    /**
+     * @see Vragment#onAttach()
+     */
+    void onAttach();
+
+    /**
+     * @see Vragment#onStart()
+     */
+    void onStart();
+
+    /**
+     * @see Vragment#onResume()
+     */
+    void onResume();
+
+    /**
+     * @see Vragment#onPause()
+     */
+    void onPause();
+
+    /**
+     * @see Vragment#onStop()
+     */
+    void onStop();
+
+    /**
+     * @see Vragment#onDetach()
+     */
+    void onDetach();
+
+    /**
+     * @see Vragment#onDestroy()
+     */
+    void onDestroy();
+
+    /**
+     * @see Vragment#onBackPressed()
+     */
+    boolean onBackPressed();
+}
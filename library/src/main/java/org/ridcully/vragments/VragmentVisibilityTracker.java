@@ -0,0 +1,168 @@
+package org.ridcully.vragments;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+
+/**
+ * Lets vragments embedded in scrolling containers, e.g. as cards of a RecyclerView, only be
+ * resumed while enough of them is actually on screen. Tracked vragments are moved between
+ * STARTED and RESUMED by their visible fraction: they are resumed once it reaches the resume
+ * threshold, and paused once it drops to the pause threshold. Having the pause threshold below
+ * the resume threshold avoids flapping at the edges of the screen.
+ *
+ * Visibility is checked before drawing, at most once per check interval, without allocations.
+ * Get the tracker of an activity via {@link VragmentActivity#getVisibilityTracker()} and
+ * opt in vragments via {@link VragmentView#setVisibilityTracked(boolean)}.
+ */
+
+@MainThread
+public final class VragmentVisibilityTracker {
+
+    private final static float DEFAULT_RESUME_THRESHOLD = 0.5f;
+    private final static float DEFAULT_PAUSE_THRESHOLD = 0.2f;
+    private final static long DEFAULT_CHECK_INTERVAL_MS = 100;
+
+    private final VragmentActivity mActivity;
+    private final ArrayList<VragmentDelegate> mTracked = new ArrayList<>();
+    /** Reused for every check, to avoid allocations per frame. */
+    private final Rect mVisibleRect = new Rect();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private float mResumeThreshold = DEFAULT_RESUME_THRESHOLD;
+    private float mPauseThreshold = DEFAULT_PAUSE_THRESHOLD;
+    private long mCheckIntervalMs = DEFAULT_CHECK_INTERVAL_MS;
+    private long mLastCheck;
+    private boolean mCheckScheduled;
+    private ViewTreeObserver mObserver;
+
+    private final ViewTreeObserver.OnPreDrawListener mPreDrawListener = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            long now = SystemClock.uptimeMillis();
+            if (now - mLastCheck >= mCheckIntervalMs) {
+                check();
+            } else if (!mCheckScheduled) {
+                // throttled; check once more after the interval, so the final position counts
+                mCheckScheduled = true;
+                mHandler.postDelayed(mDeferredCheck, mCheckIntervalMs - (now - mLastCheck));
+            }
+            return true;
+        }
+    };
+
+    private final Runnable mDeferredCheck = new Runnable() {
+        @Override
+        public void run() {
+            mCheckScheduled = false;
+            check();
+        }
+    };
+
+    VragmentVisibilityTracker(VragmentActivity activity) {
+        mActivity = activity;
+    }
+
+    /**
+     * Sets visible fractions for resuming and pausing tracked vragments; 0.5 and 0.2 by default.
+     *
+     * @param resumeThreshold fraction of a vragment that must be visible to resume it
+     * @param pauseThreshold fraction of a vragment at or below which it is paused
+     * @return this tracker for concatenating further calls
+     * @throws IllegalArgumentException if a threshold is outside [0, 1], or pauseThreshold is above
+     *             resumeThreshold
+     */
+    public VragmentVisibilityTracker setThresholds(float resumeThreshold, float pauseThreshold) {
+        if (!(resumeThreshold >= 0 && resumeThreshold <= 1) || !(pauseThreshold >= 0 && pauseThreshold <= 1)) {
+            throw new IllegalArgumentException("Thresholds must be within [0, 1]");
+        }
+        if (pauseThreshold > resumeThreshold) {
+            throw new IllegalArgumentException("Pause threshold must not be above resume threshold");
+        }
+        mResumeThreshold = resumeThreshold;
+        mPauseThreshold = pauseThreshold;
+        return this;
+    }
+
+    /**
+     * Sets minimum interval between visibility checks; 100ms by default.
+     *
+     * @param checkIntervalMs
+     * @return this tracker for concatenating further calls
+     */
+    public VragmentVisibilityTracker setCheckInterval(long checkIntervalMs) {
+        mCheckIntervalMs = checkIntervalMs;
+        return this;
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    /**
+     * Starts tracking given vragment; it is kept from resuming until it is found visible.
+     *
+     * @param vragment
+     */
+    void track(@NonNull VragmentDelegate vragment) {
+        if (mTracked.contains(vragment)) return;
+        vragment.setVisibleEnough(false);
+        mTracked.add(vragment);
+        if (mObserver == null) {
+            mObserver = mActivity.getWindow().getDecorView().getViewTreeObserver();
+            mObserver.addOnPreDrawListener(mPreDrawListener);
+        }
+        // checked on the next draw, and after the interval in case nothing is drawn
+        mLastCheck = 0;
+        if (!mCheckScheduled) {
+            mCheckScheduled = true;
+            mHandler.postDelayed(mDeferredCheck, mCheckIntervalMs);
+        }
+    }
+
+    /**
+     * Stops tracking given vragment and lifts its visibility limit.
+     *
+     * @param vragment
+     */
+    void untrack(@NonNull VragmentDelegate vragment) {
+        if (!mTracked.remove(vragment)) return;
+        vragment.setVisibleEnough(true);
+        if (mTracked.isEmpty() && mObserver != null) {
+            // the decor view's observer may have been floating and merged into the window's since
+            if (!mObserver.isAlive()) mObserver = mActivity.getWindow().getDecorView().getViewTreeObserver();
+            if (mObserver.isAlive()) mObserver.removeOnPreDrawListener(mPreDrawListener);
+            mObserver = null;
+            mHandler.removeCallbacks(mDeferredCheck);
+            mCheckScheduled = false;
+        }
+    }
+
+    private void check() {
+        mLastCheck = SystemClock.uptimeMillis();
+        // index loop, as vragments may be untracked by lifecycle callbacks invoked from here
+        for (int i = mTracked.size() - 1; i >= 0; i--) {
+            if (i >= mTracked.size()) continue;
+            VragmentDelegate vragment = mTracked.get(i);
+            float fraction = visibleFraction(vragment.getView());
+            if (fraction >= mResumeThreshold) {
+                vragment.setVisibleEnough(true);
+            } else if (fraction <= mPauseThreshold) {
+                vragment.setVisibleEnough(false);
+            }
+        }
+    }
+
+    private float visibleFraction(View view) {
+        long area = (long) view.getWidth() * view.getHeight();
+        if (area == 0 || !view.isShown() || !view.getGlobalVisibleRect(mVisibleRect)) return 0;
+        return (float) ((long) mVisibleRect.width() * mVisibleRect.height()) / area;
+    }
+}
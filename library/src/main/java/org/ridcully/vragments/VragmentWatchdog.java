@@ -0,0 +1,263 @@
+package org.ridcully.vragments;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.StrictMode;
+import android.os.strictmode.Violation;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+/**
+ * Opt-in watchdog reporting vragments that are slow in their lifecycle callbacks or construction.
+ * Install it via {@link VragmentActivity#setWatchdog(VragmentWatchdog)}, e.g.
+ *
+ * <pre>
+ * setWatchdog(new VragmentWatchdog(listener)
+ *         .setSampleRate(BuildConfig.DEBUG ? 1f : 0.01f)
+ *         .setBudget(VragmentWatchdog.ON_CREATE_CONTENT, 32)
+ *         .setBudget(VragmentWatchdog.ON_RESUME, 8));
+ * </pre>
+ *
+ * Every callback taking longer than its budget is reported to the listener. On API 28+ disk and
+ * network access on the main thread is detected with {@link StrictMode} and reported with the
+ * vragment class and callback it happened in.
+ */
+
+public final class VragmentWatchdog {
+
+    public final static String CONSTRUCT = "<init>";
+    /** Creation of content, e.g. inflation of its layout; see {@link Vragment#onCreateContent()}. */
+    public final static String ON_CREATE_CONTENT = "onCreateContent";
+    public final static String ON_ATTACH = "onAttach";
+    public final static String ON_START = "onStart";
+    public final static String ON_RESUME = "onResume";
+    public final static String ON_PAUSE = "onPause";
+    public final static String ON_STOP = "onStop";
+    public final static String ON_DETACH = "onDetach";
+    public final static String ON_DESTROY = "onDestroy";
+
+    private final static long DEFAULT_BUDGET_MS = 16;
+    /** Maximum nesting of callbacks tracked, e.g. child vragments started from onStart of parent. */
+    private final static int MAX_DEPTH = 32;
+
+    /**
+     * Receives reports of offending vragments on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a callback took longer than its budget.
+         *
+         * @param vragmentClass name of the vragment class
+         * @param callback name of the callback, e.g. {@link #ON_RESUME}
+         * @param durationMs
+         * @param budgetMs
+         */
+        void onSlowCallback(String vragmentClass, String callback, long durationMs, long budgetMs);
+
+        /**
+         * Called when a StrictMode violation happened within a callback.
+         *
+         * @param vragmentClass name of the vragment class
+         * @param callback name of the callback, e.g. {@link #ON_RESUME}
+         * @param violation
+         */
+        void onStrictModeViolation(String vragmentClass, String callback, Throwable violation);
+    }
+
+    private final Listener mListener;
+    private final Map<String, Long> mBudgets = new HashMap<>();
+    private long mDefaultBudgetMs = DEFAULT_BUDGET_MS;
+    private float mSampleRate = 1f;
+    /** Whether this watchdog is active; decided once in {@link #start()}. */
+    private Boolean mSampled;
+    private StrictMode.ThreadPolicy mPreviousPolicy;
+
+    /** Callbacks currently running, innermost last; parallel arrays to avoid allocations. */
+    private final String[] mRunningClasses = new String[MAX_DEPTH];
+    private final String[] mRunningCallbacks = new String[MAX_DEPTH];
+    private final long[] mRunningStarts = new long[MAX_DEPTH];
+    private int mDepth;
+
+    public VragmentWatchdog(@NonNull Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets the budget for all callbacks without an explicit budget. Default is 16ms.
+     *
+     * @param budgetMs
+     * @return this watchdog for concatenating further calls
+     */
+    public VragmentWatchdog setDefaultBudget(long budgetMs) {
+        mDefaultBudgetMs = budgetMs;
+        return this;
+    }
+
+    /**
+     * Sets the budget for given callback.
+     *
+     * @param callback e.g. {@link #CONSTRUCT} or {@link #ON_RESUME}
+     * @param budgetMs
+     * @return this watchdog for concatenating further calls
+     */
+    public VragmentWatchdog setBudget(@NonNull String callback, long budgetMs) {
+        mBudgets.put(callback, budgetMs);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of activities the watchdog is active for, e.g. 1 for debug builds and
+     * 0.01 for production builds. Whether it is active is decided once, when it is installed.
+     *
+     * @param sampleRate between 0 and 1
+     * @return this watchdog for concatenating further calls
+     */
+    public VragmentWatchdog setSampleRate(float sampleRate) {
+        mSampleRate = sampleRate;
+        return this;
+    }
+
+
+    // ---------------------------------------------------------------------------- Internal methods
+
+
+    /**
+     * Decides whether this watchdog is active and installs StrictMode listener, if so.
+     *
+     * @return whether this watchdog is active
+     */
+    @MainThread
+    boolean start() {
+        if (mSampled == null) {
+            mSampled = mSampleRate >= 1f || new Random().nextFloat() < mSampleRate;
+            if (mSampled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) installStrictMode();
+        }
+        return mSampled;
+    }
+
+    /**
+     * Restores the StrictMode policy replaced by {@link #start()}.
+     */
+    @MainThread
+    void stop() {
+        if (mPreviousPolicy != null) {
+            StrictMode.setThreadPolicy(mPreviousPolicy);
+            mPreviousPolicy = null;
+        }
+        mDepth = 0;
+    }
+
+    /**
+     * Marks begin of given callback; must be followed by {@link #end()}.
+     *
+     * @param vragmentClass
+     * @param callback
+     */
+    void begin(String vragmentClass, String callback) {
+        if (mDepth < MAX_DEPTH) {
+            mRunningClasses[mDepth] = vragmentClass;
+            mRunningCallbacks[mDepth] = callback;
+            mRunningStarts[mDepth] = System.nanoTime();
+        }
+        mDepth++;
+    }
+
+    /**
+     * Marks end of the callback begun last and reports it, if it took longer than its budget.
+     */
+    void end() {
+        if (mDepth == 0) return;
+        mDepth--;
+        if (mDepth >= MAX_DEPTH) return;
+        long durationMs = (System.nanoTime() - mRunningStarts[mDepth]) / 1000000;
+        String callback = mRunningCallbacks[mDepth];
+        Long budget = mBudgets.get(callback);
+        long budgetMs = budget != null ? budget : mDefaultBudgetMs;
+        if (durationMs > budgetMs) {
+            mListener.onSlowCallback(mRunningClasses[mDepth], callback, durationMs, budgetMs);
+        }
+        mRunningClasses[mDepth] = null;
+        mRunningCallbacks[mDepth] = null;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.P)
+    private void installStrictMode() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mPreviousPolicy = StrictMode.getThreadPolicy();
+        StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder(mPreviousPolicy)
+                .detectDiskReads()
+                .detectDiskWrites()
+                .detectNetwork()
+                .detectCustomSlowCalls()
+                .penaltyListener(new Executor() {
+                    @Override
+                    public void execute(@NonNull Runnable command) {
+                        handler.post(command);
+                    }
+                }, new StrictMode.OnThreadViolationListener() {
+                    @Override
+                    public void onThreadViolation(Violation violation) {
+                        attribute(violation);
+                    }
+                })
+                .build());
+    }
+
+    /**
+     * Reports given violation for the vragment callback found in its stack trace. Violations are
+     * delivered asynchronously, so the stack trace is the only reliable way to find the callback.
+     *
+     * @param violation
+     */
+    private void attribute(Throwable violation) {
+        for (StackTraceElement frame : violation.getStackTrace()) {
+            String callback = callbackOf(frame);
+            if (callback == null) continue;
+            // innermost frame in a vragment subclass, e.g. MyVragment.onResume
+            Class<?> clazz = loadClass(frame.getClassName());
+            if (clazz != null && VragmentView.class.isAssignableFrom(clazz) && clazz != Vragment.class
+                    && clazz != LinearVragment.class && clazz != ConstraintVragment.class) {
+                mListener.onStrictModeViolation(frame.getClassName(), callback, violation);
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    private static String callbackOf(StackTraceElement frame) {
+        String method = frame.getMethodName();
+        switch (method) {
+            case CONSTRUCT:
+            case ON_CREATE_CONTENT:
+            case ON_ATTACH:
+            case ON_START:
+            case ON_RESUME:
+            case ON_PAUSE:
+            case ON_STOP:
+            case ON_DETACH:
+            case ON_DESTROY:
+                return method;
+            default:
+                return null;
+        }
+    }
+
+    @Nullable
+    private Class<?> loadClass(String className) {
+        try {
+            return Class.forName(className, false, getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.ridcully.mondriansamples;
+
+import org.ridcully.vragments.VragmentArgs;
+
+/**
+ * Arguments of {@link GreenVragment}; its codec GreenArgs_Codec is generated by the compiler module.
+ */
+
+@VragmentArgs
+class GreenArgs {
+    String name;
+}
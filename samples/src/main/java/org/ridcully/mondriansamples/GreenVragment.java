@@ -19,9 +19,15 @@ class GreenVragment extends Vragment {
     /** Required */
     public GreenVragment(Context context, Bundle args) {
         super(context, args);
+    }
+
+    /** Invoked when shown for the first time, so hidden or restored instances stay cheap */
+    @Override
+    protected void onCreateContent() {
         inflate(getContext(), R.layout.segment_green, this);
         ButterKnife.bind(this);
-        Toast.makeText(getContext(), "Hello " + getArguments().getString("name"), Toast.LENGTH_LONG)
+        GreenArgs args = getArguments(GreenArgs_Codec.INSTANCE);
+        Toast.makeText(getContext(), "Hello " + args.name, Toast.LENGTH_LONG)
                 .show();
     }
 
@@ -9,8 +9,6 @@ import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 
-import static org.ridcully.vragments.VragmentManager.bundle;
-
 public class MainActivity extends VragmentActivity {
 
     @BindView(R.id.segment_container) FrameLayout mSegmentContainer;
@@ -24,12 +22,14 @@ public class MainActivity extends VragmentActivity {
 
     @OnClick(R.id.bt_add)
     public void addSegment() {
-        getSegmentManager().push(R.id.segment_container, new GreenVragment(this, bundle("name", "Robert")), "marker");
+        GreenArgs args = new GreenArgs();
+        args.name = "Robert";
+        getVragmentManager().push(R.id.segment_container, new GreenVragment(this, null), "marker", args, GreenArgs_Codec.INSTANCE);
     }
 
     @Override
     public void onBackPressed() {
-        if (!getSegmentManager().onBackPressed(R.id.segment_container)) {
+        if (!getVragmentManager().onBackPressed(R.id.segment_container)) {
             super.onBackPressed();
         }
     }